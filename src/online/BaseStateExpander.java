@@ -5,10 +5,7 @@ package online;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -23,18 +20,17 @@ import beast.base.inference.OperatorSchedule;
 import beast.base.inference.Runnable;
 import beast.base.inference.State;
 import beast.base.inference.StateNode;
-import beast.base.inference.StateNodeInitialiser;
-import beast.base.inference.parameter.IntegerParameter;
-import beast.base.inference.parameter.Parameter;
-import beast.base.inference.parameter.RealParameter;
 import beast.base.core.Log;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
-import beast.base.parser.XMLParser;
 import beast.base.parser.XMLParserException;
 import online.stateoptimiser.StateOptimiser;
 import online.stateoptimiser.StateOptimiserByLocalMCMC;
+import online.treeexpander.AllBranchExpander;
+import online.treeexpander.BeamSearchExpander;
 import online.treeexpander.BinarySearchExpander;
+import online.treeexpander.PlacementCache;
+import online.treeexpander.TreeSurgery;
 
 // take rates in account in estimated parameters
 // take group sizes in account in estimated parameters
@@ -42,6 +38,8 @@ import online.treeexpander.BinarySearchExpander;
 
 @Description("Base class for create a new state extending an input state with different set of taxa")
 public class BaseStateExpander extends beast.base.inference.Runnable {
+	public enum Placement {binarySearch, allBranches, beamSearch}
+
 	final public Input<XMLFile> xml1Input = new Input<>("xml1", "BEAST XML file with initial state", new XMLFile("[[none]]"));
 	
 	final public Input<Long> chainLengthInput = new Input<>("chainLength", "Length of the MCMC chain used after placement of taxa", 1000L);
@@ -50,6 +48,17 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 	
 	final public Input<Long> seedInput = new Input<>("seed", "Specify a random number generator seed");
 	final public Input<String> definitionsInput = new Input<>("definitions","comma separated list of definitions used in the XML (like the -D option for BEAST)", "");
+	final public Input<Placement> placementInput = new Input<>("placement", "how new taxa are placed in the tree: by binary search from the root down (binarySearch), "
+			+ "on the branch with highest tree likelihood among all branches (allBranches), "
+			+ "or by following the best beamWidth branches down the tree (beamSearch)", Placement.binarySearch, Placement.values());
+	final public Input<Integer> beamWidthInput = new Input<>("beamWidth", "number of branches followed down the tree at every level when placement is beamSearch", 3);
+	final public Input<Integer> placementThreadsInput = new Input<>("placementThreads", "number of candidate branches scored concurrently when placing new taxa. "
+			+ "Threads scoring candidates are shared by all samples and limited to the number of processors. "
+			+ "With 6 or more, the search looks two levels down the tree at a time. With 1 (default) candidates are scored one after another", 1);
+	final public Input<Boolean> cachePlacementsInput = new Input<>("cachePlacements", "remember next to which clades new taxa are placed, and start the binary search (placement=binarySearch only) "
+			+ "for a branch there when the clade is in the tree of a later sample", false);
+	final public Input<Integer> neighboursInput = new Input<>("neighbours", "number of leaves nearest to a new taxon by p-distance between sequences. "
+			+ "If larger than 0, the binary search for a branch to place the taxon starts at the smallest clade containing these leaves instead of at the root", 0);
 
 	public BaseStateExpander() {
 	}
@@ -67,6 +76,20 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 	public void run() throws Exception {
 	}
 
+	/** reusable buffers for changing trees **/
+	private TreeSurgery surgery = new TreeSurgery();
+	/** kept between calls, so copies of the model used for scoring candidate branches are reused **/
+	private BinarySearchExpander expander = null;
+	/** used for all samples this expander processes if cachePlacements is set **/
+	private PlacementCache placementCache = null;
+
+	/** release copies of the model used for scoring candidate branches and the threads scoring them **/
+	public void close() {
+		if (expander != null) {
+			expander.close();
+		}
+	}
+
 	/* initialise part of model2 that is not already initialised by that of model1 (and remove parts of the state/tree if necessary) */
 	public List<String> step1UpdateState(Model model1, Model model2) throws IOException, SAXException, ParserConfigurationException, XMLParserException {
 		
@@ -83,11 +106,30 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 		
 		// initialise tree of model2 with taxa from model1
 		// position additional taxa at locations with high support
-		BinarySearchExpander expander = new BinarySearchExpander();
+		if (expander == null) {
+			if (placementInput.get() == Placement.allBranches) {
+				expander = new AllBranchExpander();
+			} else if (placementInput.get() == Placement.beamSearch) {
+				expander = new BeamSearchExpander(beamWidthInput.get(), placementThreadsInput.get());
+			} else {
+				expander = new BinarySearchExpander(placementThreadsInput.get(), neighboursInput.get());
+			}
+			if (cachePlacementsInput.get()) {
+				if (placementInput.get() != Placement.binarySearch) {
+					throw new IllegalArgumentException("cachePlacements only applies to placement=binarySearch, not " + placementInput.get());
+				}
+				if (placementCache == null) {
+					placementCache = new PlacementCache();
+				}
+				expander.setPlacementCache(placementCache);
+			}
+		}
 		expander.expandTree(model1, model2, additions, hasGroupSizes);
 		
 		
-		Log.debug(model2.tree.getRoot().toNewick());
+		if (Log.getLevel().ordinal() >= Log.Level.debug.ordinal()) {
+			Log.debug(model2.tree.getRoot().toNewick());
+		}
 		return additions;
 
 	} // updateState
@@ -99,7 +141,7 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 	
 	public void step3RunMCMC(Model model2) throws IOException, SAXException, ParserConfigurationException {
 		if (model2.mcmc2 == null) {
-			PartitionMCMC mcmc = PartitionMCMC.newMCMC(model2, null, chainLengthInput.get(), definitionsInput.get());
+			PartitionMCMC mcmc = PartitionMCMC.newMCMC(model2, null, chainLengthInput.get());
 			mcmc.setProportion(0.0);
 			model2.mcmc2 = mcmc;
 		}
@@ -160,31 +202,7 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 	}
 	
 	protected Node removeExclusions(Node node, List<String> taxaToExclude) {
-		if (node.isLeaf()) {
-			if (Collections.binarySearch(taxaToExclude, node.getID()) < 0) {
-				return node;
-			} else {
-				return null;
-			}
-		} else {
-			Node left_ = node.getLeft(); 
-			Node right_ = node.getRight(); 
-			left_ = removeExclusions(left_, taxaToExclude);
-			right_ = removeExclusions(right_, taxaToExclude);
-			if (left_ == null && right_ == null) {
-				return null;
-			}
-			if (left_ == null) {
-				return right_;
-			}
-			if (right_ == null) {
-				return left_;
-			}
-			node.removeAllChildren(false);
-			node.addChild(left_);
-			node.addChild(right_);
-			return node;
-		}
+		return surgery.prune(node, taxaToExclude);
 	} // removeExclusions
 
 	
@@ -221,91 +239,18 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 
 	boolean hasGroupSizes = false;
 	// copy all state-nodes unless they are a tree, or they are parameters with different dimensions (like rates)
-	protected void copyCommonStateNodes(Model model1, Model model2, int deltaTaxaCount) {
-		State state1 = model1.state; 
-		State state2 = model2.state;
-		List<StateNode> s1 = state1.stateNodeInput.get();
-		List<StateNode> s2 = state2.stateNodeInput.get();
+	private StateTransferPlan transferPlan = null;
 
-		for (int i = 0; i < s1.size(); i++) {
-			StateNode sn1 = s1.get(i);
-			StateNode sn2 = s2.get(i);
-			if (!(sn1 instanceof Tree)) {
-				if (sn1 instanceof Parameter<?>) {
-					if (((Parameter<?>)sn1).getDimension() == ((Parameter<?>)sn2).getDimension()) {
-						if (sn1 instanceof IntegerParameter && sn1.getID().startsWith("bGroupSizes")) {
-							hasGroupSizes = true;
-						}
-					}
-				}
-			}
-		}		
-		if (hasGroupSizes) {
-			for (StateNodeInitialiser init : model2.mcmc.initialisersInput.get()) {
-				init.initStateNodes();
-			}
-			// initialises internal node count in tree
-			model2.state.setEverythingDirty(true);
-			model2.state.storeCalculationNodes();
-			model2.state.checkCalculationNodesDirtiness();
-			model2.posterior.calculateLogP();
-			model2.state.acceptCalculationNodes();
-		}
-		
-		Map<String, StateNode> snMap2 = new HashMap<>();
-		for (int i = 0; i < s2.size(); i++) {
-			snMap2.put(s2.get(i).getID(), s2.get(i));
-		}		
-		
-		for (int i = 0; i < s1.size(); i++) {
-			StateNode sn1 = s1.get(i);
-			if (snMap2.containsKey(sn1.getID())) {
-				StateNode sn2 = snMap2.get(sn1.getID());
-				// sanity check
-				if (!sn1.getID().equals(sn2.getID()) || sn1.getClass() != sn2.getClass()) {
-					throw new IllegalArgumentException("Different states found");
-				}
-				
-				// copy under some conditions
-				if (!(sn1 instanceof Tree)) {
-					if (sn1 instanceof Parameter<?>) {
-						if (((Parameter<?>)sn1).getDimension() == ((Parameter<?>)sn2).getDimension()) {
-							if (sn1 instanceof IntegerParameter && sn1.getID().startsWith("bGroupSizes")) {
-								sn2.assignFrom(sn1);
-								IntegerParameter p = (IntegerParameter) sn2;
-								int k = 0;
-								for (int j = 0; j < deltaTaxaCount; j++) {
-									p.setValue(k, p.getValue(k) + 1);
-									k += 1;
-									if (k == p.getDimension()) {
-										k = 0;
-									}
-								}
-							} else {
-								sn2.assignFrom(sn1);
-							}
-						} else {
-							model1.parameters.add((Parameter<?>)sn1);
-							model2.parameters.add((Parameter<?>)sn2);
-							// get meta data values from tree, copied when tree1 was copied to tree2
-							Parameter<?> p1 = (Parameter<?>) sn1;
-							Parameter<?> p2 = (Parameter<?>) sn2;
-							if (p1 instanceof RealParameter) {
-								for (int j = 0; j < p1.getDimension(); j++) {
-									((RealParameter)p2).setValue((Double)p1.getValue(j));
-								}
-							} else {
-								for (int j = 0; j < p1.getDimension(); j++) {
-									((IntegerParameter)p2).setValue((Integer)p1.getValue(j));
-								}
-							}
-						}
-					} else {
-						sn2.assignFrom(sn1);
-					}
-				}
+	protected void copyCommonStateNodes(Model model1, Model model2, int deltaTaxaCount) {
+		if (transferPlan == null || !transferPlan.isFor(model1, model2, deltaTaxaCount)) {
+			// work out once per pair of models what to copy
+			// and run the state node initialisers of model2 if there are group sizes
+			transferPlan = new StateTransferPlan(model1, model2, deltaTaxaCount);
+			if (transferPlan.hasGroupSizes) {
+				hasGroupSizes = true;
 			}
 		}
+		transferPlan.apply();
 	} // copyCommonStateNodes
 
 	
@@ -313,10 +258,8 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 		if (xmlFile == null || xmlFile.getName().equals("[[none]]")) {
 			throw new IllegalArgumentException("XML file not specified");
 		}
-        Map<String, String> parserDefinitions = Util.getParserDefinitions(definitionsInput.get());
-
-		XMLParser parser = new XMLParser(parserDefinitions);
-		Runnable runnable = parser.parseFile(xmlFile);
+		// XML files are parsed once, subsequent calls get a copy of the parsed model
+		Runnable runnable = ModelCache.get(xmlFile, definitionsInput.get());
 		Model model = new Model();
 		model.state = (State) runnable.getInputValue("state");
 		for (StateNode sn : model.state.stateNodeInput.get()) {
@@ -329,15 +272,6 @@ public class BaseStateExpander extends beast.base.inference.Runnable {
 				}
 			}
 		}
-		for (StateNode sn : model.state.stateNodeInput.get()) {
-			if (sn instanceof Parameter && ((Parameter<?>)sn).getDimension() > model.tree.getLeafNodeCount() && Util.isClockModelParameter((Parameter<?>)sn)) {
-				Node [] nodes = model.tree.getNodesAsArray();
-				for (int j = 0; j < ((Parameter<?>)sn).getDimension(); j++) {
-					nodes[j].setMetaData(sn.getID(), ((Parameter<?>)sn).getValue(j));
-				}				
-			}
-		}		
-
 		
 		model.mcmc = (MCMC) runnable;
 		model.posterior = (Distribution) runnable.getInputValue("distribution");
@@ -0,0 +1,109 @@
+package online;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Input;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.tree.TraitSet;
+import beast.base.inference.StateNode;
+import beast.pkgmgmt.BEASTClassLoader;
+
+/** Copies a model graph like serialising the graph to XML and parsing it again does, but without the XML.
+ *
+ * Data objects, that is alignments, sequences, taxa, taxon sets and trait sets, are shared with the 
+ * original instead of being copied, so all copies of a model use the same read-only data. Everything 
+ * else, in particular every CalculationNode, is created afresh with the same inputs (copied where needed) 
+ * and initialised, since calculation nodes keep caches (like transition matrices and likelihood buffers) 
+ * that cannot be used by several threads at the same time. State nodes get the values of the originals.
+ * A copy of a model with a tree likelihood therefore allocates its own likelihood buffers, so copying 
+ * costs time and memory proportional to the number of taxa times the number of patterns.
+ *
+ * Classes of copies can be substituted, e.g. to replace TreeLikelihood by a subclass
+ * taking the same inputs.
+ **/
+public class GraphCopier {
+	private Map<BEASTInterface, BEASTInterface> copies = new IdentityHashMap<>();
+	private Map<String, String> substitutions = new HashMap<>();
+
+	public GraphCopier() {
+	}
+
+	/** copies of objects of class fromClass will be objects of class toClass,
+	 * which is expected to have the same inputs as fromClass **/
+	public void substitute(String fromClass, String toClass) {
+		substitutions.put(fromClass, toClass);
+	}
+
+	/** copy of object, which is o itself if it is not a BEAST object or is a data object **/
+	@SuppressWarnings("unchecked")
+	public <T> T copy(T o) {
+		if (!(o instanceof BEASTInterface)) {
+			return o;
+		}
+		BEASTInterface beastObject = (BEASTInterface) o;
+		if (copies.containsKey(beastObject)) {
+			return (T) copies.get(beastObject);
+		}
+		if (isData(beastObject)) {
+			copies.put(beastObject, beastObject);
+			return o;
+		}
+
+		BEASTInterface copy = newInstance(beastObject);
+		copy.setID(beastObject.getID());
+		copies.put(beastObject, copy);
+		for (Input<?> input : beastObject.getInputs().values()) {
+			Object value = input.get();
+			if (value == null) {
+				continue;
+			}
+			Input<?> target = copy.getInput(input.getName());
+			if (value instanceof List<?>) {
+				for (Object item : (List<?>) value) {
+					setValue(target, copy(item), copy);
+				}
+			} else {
+				setValue(target, copy(value), copy);
+			}
+		}
+		copy.initAndValidate();
+		if (beastObject instanceof StateNode) {
+			// initAndValidate may give the copy another dimension or node count than the original has by now
+			Util.copyStateNode((StateNode) beastObject, (StateNode) copy);
+		}
+		return (T) copy;
+	}
+
+	/** Input.setValue registers copy as output of value. Shared objects never change, so they
+	 * do not need to know about copies, and are kept from collecting outputs of every copy made. **/
+	private void setValue(Input<?> target, Object value, BEASTInterface copy) {
+		target.setValue(value, copy);
+		if (value instanceof BEASTInterface && copies.get(value) == value) {
+			((BEASTInterface) value).getOutputs().remove(copy);
+		}
+	}
+
+	/** data that does not change during MCMC **/
+	private static boolean isData(BEASTInterface beastObject) {
+		return beastObject instanceof Alignment || beastObject instanceof Sequence ||
+				beastObject instanceof Taxon || beastObject instanceof TraitSet;
+	}
+
+	private BEASTInterface newInstance(BEASTInterface beastObject) {
+		String className = beastObject.getClass().getName();
+		if (substitutions.containsKey(className)) {
+			className = substitutions.get(className);
+		}
+		try {
+			return (BEASTInterface) BEASTClassLoader.forName(className).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Could not create copy of " + beastObject.getID() + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package online;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import beast.base.core.Log;
+import beast.base.inference.Runnable;
+import beast.base.parser.XMLParser;
+import beast.base.parser.XMLParserException;
+
+/** In-process cache of parsed BEAST XML files, keyed by a hash of the content of the XML file,
+ * its directory (for relative references) and the parser definitions.
+ *
+ * The parsed model is kept as a template that is never handed out. Every request gets a
+ * copy made by GraphCopier, which is much cheaper than parsing, and shares alignments and
+ * other data that does not change during MCMC with the template.
+ * Templates are kept till clear() is called, which TraceExpander and StateExpander do once
+ * they have made all models of a run, so only the copies in use stay in memory.
+ **/
+public class ModelCache {
+	private static Map<String, Runnable> templates = new HashMap<>();
+
+	private ModelCache() {
+	}
+
+	/** fresh copy of the runnable in the XML file, parsing the file only if it was not parsed before **/
+	public static Runnable get(File xmlFile, String definitions) throws SAXException, IOException, ParserConfigurationException, XMLParserException {
+		String key = getKey(xmlFile, definitions);
+		synchronized (templates) {
+			Runnable template = templates.get(key);
+			if (template == null) {
+				Map<String, String> parserDefinitions = Util.getParserDefinitions(definitions);
+				XMLParser parser = new XMLParser(parserDefinitions);
+				template = parser.parseFile(xmlFile);
+				templates.put(key, template);
+			} else {
+				Log.debug("Using cached model for " + xmlFile.getPath());
+			}
+			// copying adds outputs to shared objects, so copies are made one at a time
+			synchronized (GraphCopier.class) {
+				return new GraphCopier().copy(template);
+			}
+		}
+	}
+
+	/** release all cached models **/
+	public static void clear() {
+		synchronized (templates) {
+			templates.clear();
+		}
+	}
+
+	private static String getKey(File xmlFile, String definitions) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(xmlFile.toPath()));
+			digest.update((byte) 0);
+			digest.update(xmlFile.getAbsoluteFile().getParent().getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update((definitions == null ? "" : definitions).getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(String.format("%02x", b));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
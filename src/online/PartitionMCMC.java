@@ -4,17 +4,20 @@ package online;
 
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.json.JSONObject;
 import org.xml.sax.SAXException;
 
 import beast.base.inference.Logger;
 import beast.base.inference.MCMC;
 import beast.base.inference.Operator;
+import beast.base.inference.OperatorSchedule;
 import beast.base.inference.State;
 import beast.base.inference.StateNode;
 import beast.base.inference.parameter.IntegerParameter;
@@ -22,12 +25,10 @@ import beast.base.inference.parameter.Parameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.core.Description;
 import beast.base.core.Log;
-import beast.base.parser.XMLParser;
-import beast.base.parser.XMLParserException;
-import beast.base.parser.XMLProducer;
 import beastbooster.operators.MultiStepOperatorScheduleForSingleTree;
 import online.operators.AfterburnOperatorSchedule;
 import online.operators.ExchangeOnPartition;
+import online.operators.PartitionOperator;
 import online.operators.RandomWalkOnParition;
 import online.operators.RateScaleOnPartition;
 import online.operators.TreePartition;
@@ -42,6 +43,91 @@ public class PartitionMCMC extends MCMC {
 		state.fromXML(xml);
 	}
 
+	/** set state of this chain to the values of the state nodes of source **/
+	public void initState(State source) {
+		assignState(source, state);
+	}
+
+	/** copy values of state nodes the chain can change into target.
+	 * State nodes none of the operators touch are left alone. **/
+	public void storeState(State target) {
+		List<StateNode> s1 = state.stateNodeInput.get();
+		List<StateNode> s2 = target.stateNodeInput.get();
+		boolean [] changeable = getChangeableStateNodes();
+		for (int i = 0; i < s1.size(); i++) {
+			if (changeable[i]) {
+				Util.copyStateNode(s1.get(i), s2.get(i));
+			}
+		}
+	}
+
+	private boolean [] changeable = null;
+
+	/** flags for state nodes in the state that any of the operators of this chain can change **/
+	private boolean [] getChangeableStateNodes() {
+		if (changeable == null) {
+			List<StateNode> stateNodes = state.stateNodeInput.get();
+			changeable = new boolean[stateNodes.size()];
+			for (Operator operator : getAllOperators()) {
+				for (StateNode stateNode : operator.listStateNodes()) {
+					int i = stateNodes.indexOf(stateNode);
+					if (i >= 0) {
+						changeable[i] = true;
+					}
+				}
+			}
+		}
+		return changeable;
+	}
+
+	/** operators of the chain and of its subschedules **/
+	private List<Operator> getAllOperators() {
+		List<Operator> operators = new ArrayList<>(operatorsInput.get());
+		for (OperatorSchedule subschedule : operatorSchedule.subschedulesInput.get()) {
+			for (Operator operator : subschedule.operatorsInput.get()) {
+				if (!operators.contains(operator)) {
+					operators.add(operator);
+				}
+			}
+		}
+		return operators;
+	}
+
+	private List<Operator> tunedOperators = null;
+	private List<JSONObject> initialTuning;
+
+	/** put tuning and acceptance counts of operators back to what they were when the chain first ran,
+	 * so a run does not depend on which samples the chain was used for before **/
+	private void resetOperatorTuning() {
+		if (tunedOperators == null) {
+			tunedOperators = getAllOperators();
+			initialTuning = new ArrayList<>();
+			for (Operator operator : tunedOperators) {
+				StringWriter buf = new StringWriter();
+				PrintWriter out = new PrintWriter(buf);
+				operator.storeToFile(out);
+				out.flush();
+				initialTuning.add(new JSONObject(buf.toString()));
+			}
+		} else {
+			for (int i = 0; i < tunedOperators.size(); i++) {
+				tunedOperators.get(i).restoreFromFile(initialTuning.get(i));
+			}
+		}
+	}
+
+
+	/** retarget partition operators at the nodes of partition, so the chain can be reused 
+	 * for another part of the tree without being rebuilt. Operator tuning is reset when the chain runs. **/
+	public void setPartition(TreePartition partition) {
+		Integer [] nodeNrs = partition.getNodeNrs();
+		for (Operator operator : operatorsInput.get()) {
+			if (operator instanceof PartitionOperator) {
+				((PartitionOperator) operator).getPartition().setNodeNrs(nodeNrs);
+			}
+		}
+	}
+
 
 	// following methods suppress any logging
 	@Override
@@ -64,6 +150,7 @@ public class PartitionMCMC extends MCMC {
 
         burnIn = burnInInput.get();
         chainLength = chainLengthInput.get();
+        resetOperatorTuning();
 		if (operatorSchedule instanceof AfterburnOperatorSchedule) {
 			((AfterburnOperatorSchedule)operatorSchedule).reset((long)(chainLengthProportion * chainLength));
 		}
@@ -89,7 +176,7 @@ public class PartitionMCMC extends MCMC {
         doLoop();
 
 		if (state != startStateInput.get()) {
-			assignState(state, startStateInput.get());
+			storeState(startStateInput.get());
 		}
 
     } // run;
@@ -100,9 +187,7 @@ public class PartitionMCMC extends MCMC {
 		List<StateNode> s2 = stateTarget.stateNodeInput.get();
 
 		for (int i = 0; i < s1.size(); i++) {
-			StateNode sn1 = s1.get(i);
-			StateNode sn2 = s2.get(i);
-			sn2.assignFrom(sn1);
+			Util.copyStateNode(s1.get(i), s2.get(i));
 		}		
 	}
 
@@ -174,7 +259,13 @@ public class PartitionMCMC extends MCMC {
     
 
 
-	static public PartitionMCMC newMCMC(Model model, TreePartition partition, Long chainLength, String definitions) {
+	/** create chain on a copy of the model, with partition operators if partition != null 
+	 * or the operators of the model otherwise.
+	 * Only the data are shared with the model. Likelihoods and the other calculation nodes are copied,
+	 * since their caches are stateful, so building a chain allocates new likelihood buffers and costs
+	 * time and memory proportional to taxa times patterns, not just to the number of operators.
+	 * Callers build a chain once and reuse it for all samples they process. **/
+	static public PartitionMCMC newMCMC(Model model, TreePartition partition, Long chainLength) {
 		List<Operator> operators = new ArrayList<>();
 		if (partition != null) {
 			// add partition operators
@@ -214,41 +305,27 @@ public class PartitionMCMC extends MCMC {
 		AfterburnOperatorSchedule operatorSchedule = new AfterburnOperatorSchedule();
 		operatorSchedule.initByName("subschedule",subschedule);
 
-		MCMC mcmc = new MCMC(); 		
-		mcmc.initByName(
-				"distribution", model.mcmc.posteriorInput.get(),
-				"state", model.mcmc.startStateInput.get(),
-				"chainLength", chainLength,
-				"operator", operators,
-				"logger", screenlog,
-				"operatorschedule", operatorSchedule
-		);
 		subschedule.initByName("operator", model.mcmc.operatorsInput.get());
 
-		
-		XMLProducer producer = new XMLProducer();
-		String xml = producer.toRawXML(mcmc);
-		xml = xml.replaceAll("'beast.base.inference.MCMC'", "'online.PartitionMCMC'");
-
-        xml = xml.replaceAll("\\bbeast.base.evolution.likelihood.ThreadedTreeLikelihood\\b", "beastbooster.likelihood.DuckThreadedTreeLikelihood");
-        xml = xml.replaceAll("\\bbeast.base.evolution.likelihood.TreeLikelihood\\b", "beastbooster.likelihood.DuckTreeLikelihood");
-		
-//		try {
-//				PrintStream out = new PrintStream(new File("/tmp/beast.xml"));
-//				out.println(xml);
-//				out.close();
-//		} catch (IOException e) {
-//			e.printStackTrace();
-//		}
-	
-		Map<String, String> parserDefinitions = Util.getParserDefinitions(definitions);
-		XMLParser parser = new XMLParser(parserDefinitions, null, false);
-		try {
-			mcmc = (MCMC) parser.parseBareFragment(xml, true);			
-		} catch (XMLParserException e) {
-			throw new RuntimeException(e);
+		// build the chain on a copy of the model, sharing only the data (alignments, taxa, traits)
+		GraphCopier copier = new GraphCopier();
+		copier.substitute("beast.base.evolution.likelihood.ThreadedTreeLikelihood", "beastbooster.likelihood.DuckThreadedTreeLikelihood");
+		copier.substitute("beast.base.evolution.likelihood.TreeLikelihood", "beastbooster.likelihood.DuckTreeLikelihood");
+		List<Operator> operatorCopies = new ArrayList<>();
+		for (Operator operator : operators) {
+			operatorCopies.add(copier.copy(operator));
 		}
-		return (PartitionMCMC) mcmc;
+
+		PartitionMCMC mcmc = new PartitionMCMC(); 		
+		mcmc.initByName(
+				"distribution", copier.copy(model.mcmc.posteriorInput.get()),
+				"state", copier.copy(model.mcmc.startStateInput.get()),
+				"chainLength", chainLength,
+				"operator", operatorCopies,
+				"logger", copier.copy(screenlog),
+				"operatorschedule", copier.copy(operatorSchedule)
+		);
+		return mcmc;
 	}
 
 }
@@ -43,6 +43,7 @@ public class StateExpander extends BaseStateExpander {
 		// import models
 		Model model1 = getModelFromFile(xml1Input.get());
 		Model model2 = getModelFromFile(xml2Input.get());
+		ModelCache.clear();
 
 		// get state from file
 		model1.state.setStateFileName(stateFile);
@@ -57,6 +58,7 @@ public class StateExpander extends BaseStateExpander {
 			step2OptimiseState(model2, additions);
 		}
 		
+		close();
 		exportStateFile(model2.state, model1.operatorSchedule);
 		Log.debug("Done!");
 	}
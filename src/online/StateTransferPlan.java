@@ -0,0 +1,214 @@
+package online;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.StateNode;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
+import beast.base.inference.parameter.RealParameter;
+
+/** Precomputed plan for copying the state nodes model1 and model2 have in common
+ * from model1 to model2. Matching state nodes by ID, checking classes and dimensions,
+ * and working out how group sizes change is done once when the plan is built, so
+ * applying the plan for every sample is a loop over index arrays.
+ *
+ * State nodes only model2 has are set to the values they had when the plan was built
+ * (after running the state node initialisers of model2 if there are group sizes) before
+ * every sample, so a sample does not depend on the samples processed before it.
+ **/
+class StateTransferPlan {
+	/** copy values of state node **/
+	final static byte COPY = 0;
+	/** copy group sizes, then add group size deltas for taxa added **/
+	final static byte GROUP_SIZES = 1;
+	/** parameter with different dimension in both models, e.g. rates per branch **/
+	final static byte RESIZED = 2;
+
+	final Model model1, model2;
+	final int deltaTaxaCount;
+	final boolean hasGroupSizes;
+
+	private int [] from, to;
+	private byte [] action;
+	private int [][] groupSizeDelta;
+	private int size;
+
+	/** state nodes only model2 has, other than trees, and the values they start each sample with **/
+	private int [] model2Only;
+	private StateNode [] initialValues;
+
+	StateTransferPlan(Model model1, Model model2, int deltaTaxaCount) {
+		this.model1 = model1;
+		this.model2 = model2;
+		this.deltaTaxaCount = deltaTaxaCount;
+
+		List<StateNode> s1 = model1.state.stateNodeInput.get();
+		List<StateNode> s2 = model2.state.stateNodeInput.get();
+		hasGroupSizes = hasGroupSizes(s1, s2);
+
+		Map<String, Integer> snMap2 = new HashMap<>();
+		for (int i = 0; i < s2.size(); i++) {
+			snMap2.put(s2.get(i).getID(), i);
+		}
+
+		from = new int[s1.size()];
+		to = new int[s1.size()];
+		action = new byte[s1.size()];
+		groupSizeDelta = new int[s1.size()][];
+		size = 0;
+		for (int i = 0; i < s1.size(); i++) {
+			StateNode sn1 = s1.get(i);
+			if (!snMap2.containsKey(sn1.getID())) {
+				continue;
+			}
+			int j = snMap2.get(sn1.getID());
+			StateNode sn2 = s2.get(j);
+			// sanity check
+			if (sn1.getClass() != sn2.getClass()) {
+				throw new IllegalArgumentException("Different states found");
+			}
+			if (sn1 instanceof Tree) {
+				// trees are handled by the tree expander
+				continue;
+			}
+			from[size] = i;
+			to[size] = j;
+			action[size] = COPY;
+			if (sn1 instanceof Parameter<?>) {
+				Parameter<?> p1 = (Parameter<?>) sn1;
+				Parameter<?> p2 = (Parameter<?>) sn2;
+				if (p1.getDimension() == p2.getDimension()) {
+					if (sn1 instanceof IntegerParameter && sn1.getID().startsWith("bGroupSizes")) {
+						action[size] = GROUP_SIZES;
+						// added taxa are spread over groups in round robin fashion
+						int [] delta = new int[p2.getDimension()];
+						int k = 0;
+						for (int d = 0; d < deltaTaxaCount; d++) {
+							delta[k]++;
+							k += 1;
+							if (k == delta.length) {
+								k = 0;
+							}
+						}
+						groupSizeDelta[size] = delta;
+					}
+				} else {
+					action[size] = RESIZED;
+					if (!model1.parameters.contains(p1)) {
+						model1.parameters.add(p1);
+					}
+					if (!model2.parameters.contains(p2)) {
+						model2.parameters.add(p2);
+					}
+				}
+			}
+			size++;
+		}
+
+		if (hasGroupSizes) {
+			for (StateNodeInitialiser init : model2.mcmc.initialisersInput.get()) {
+				init.initStateNodes();
+			}
+			// initialises internal node count in tree
+			model2.state.setEverythingDirty(true);
+			model2.state.storeCalculationNodes();
+			model2.state.checkCalculationNodesDirtiness();
+			model2.posterior.calculateLogP();
+			model2.state.acceptCalculationNodes();
+		}
+		recordInitialValues(s2);
+	}
+
+	private void recordInitialValues(List<StateNode> s2) {
+		boolean [] isCommon = new boolean[s2.size()];
+		for (int i = 0; i < size; i++) {
+			isCommon[to[i]] = true;
+		}
+		int count = 0;
+		for (int j = 0; j < s2.size(); j++) {
+			if (!isCommon[j] && !(s2.get(j) instanceof Tree)) {
+				count++;
+			}
+		}
+		model2Only = new int[count];
+		initialValues = new StateNode[count];
+		count = 0;
+		for (int j = 0; j < s2.size(); j++) {
+			if (!isCommon[j] && !(s2.get(j) instanceof Tree)) {
+				model2Only[count] = j;
+				initialValues[count] = s2.get(j).copy();
+				count++;
+			}
+		}
+	}
+
+	/** group sizes are detected only for state nodes at the same position in both states **/
+	private static boolean hasGroupSizes(List<StateNode> s1, List<StateNode> s2) {
+		for (int i = 0; i < s1.size() && i < s2.size(); i++) {
+			StateNode sn1 = s1.get(i);
+			StateNode sn2 = s2.get(i);
+			if (sn1 instanceof IntegerParameter && sn2 instanceof Parameter<?> &&
+					((Parameter<?>)sn1).getDimension() == ((Parameter<?>)sn2).getDimension() &&
+					sn1.getID().startsWith("bGroupSizes")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** true if this plan was built for the same pair of models and change in taxa **/
+	boolean isFor(Model model1, Model model2, int deltaTaxaCount) {
+		return this.model1 == model1 && this.model2 == model2 && this.deltaTaxaCount == deltaTaxaCount;
+	}
+
+	/** reset state nodes only model2 has and copy common state nodes from model1 to model2 **/
+	void apply() {
+		List<StateNode> s1 = model1.state.stateNodeInput.get();
+		List<StateNode> s2 = model2.state.stateNodeInput.get();
+		for (int i = 0; i < model2Only.length; i++) {
+			// values are copied into the existing arrays, since dimensions match
+			Util.copyStateNode(initialValues[i], s2.get(model2Only[i]));
+		}
+		for (int i = 0; i < size; i++) {
+			StateNode sn1 = s1.get(from[i]);
+			StateNode sn2 = s2.get(to[i]);
+			switch (action[i]) {
+			case COPY:
+				Util.copyStateNode(sn1, sn2);
+				break;
+			case GROUP_SIZES: {
+					Util.copyStateNode(sn1, sn2);
+					IntegerParameter p = (IntegerParameter) sn2;
+					int [] delta = groupSizeDelta[i];
+					for (int j = 0; j < delta.length; j++) {
+						if (delta[j] != 0) {
+							p.setValue(j, p.getNativeValue(j) + delta[j]);
+						}
+					}
+				}
+				break;
+			case RESIZED: {
+					// values of nodes in both trees, which are renumbered along with the nodes when the tree is expanded
+					Parameter<?> p1 = (Parameter<?>) sn1;
+					int dim = Math.min(p1.getDimension(), ((Parameter<?>) sn2).getDimension());
+					if (p1 instanceof RealParameter) {
+						RealParameter p2 = (RealParameter) sn2;
+						for (int j = 0; j < dim; j++) {
+							p2.setValue(j, p1.getArrayValue(j));
+						}
+					} else {
+						IntegerParameter p2 = (IntegerParameter) sn2;
+						for (int j = 0; j < dim; j++) {
+							p2.setValue(j, (int) p1.getArrayValue(j));
+						}
+					}
+				}
+				break;
+			}
+		}
+	}
+}
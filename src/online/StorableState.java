@@ -1,20 +1,59 @@
 package online;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.inference.State;
+import online.multistate.AsyncMultiStateWriter;
+import online.multistate.BinaryMultiStateWriter;
+import online.multistate.BoundedMultiStateWriter;
+import online.multistate.DeltaMultiStateWriter;
+import online.multistate.DeltaSink;
+import online.multistate.MultiStateSink;
+import online.multistate.MultiStateWriter;
 
-@Description("State that stores a history of states in a multi-state file")
+@Description("State that stores a history of states in a multi-state file, "
+		+ "together with an offset index (.multi.idx) for random access to states")
 public class StorableState extends State {
+	public enum MultiStateFormat {xml, binary}
+
 	final public Input<Boolean> storeMultiStateInput = new Input<>("storeMultiState", "if true, stores multi-state file (containing all state files being stored)", true);
+	final public Input<MultiStateFormat> multiStateFormatInput = new Input<>("multiStateFormat", "format of multi-state file: "
+			+ "xml stores states the same way as state files, binary stores trees and parameters as primitive arrays, "
+			+ "which is more compact and faster to read and write", MultiStateFormat.xml, MultiStateFormat.values());
+	final public Input<Boolean> asyncInput = new Input<>("async", "if true, states are serialised and written to the multi-state file "
+			+ "on a separate thread, so the chain is not held up while large states are written", false);
+	final public Input<Integer> queueSizeInput = new Input<>("queueSize", "maximum number of states waiting to be written when async=true. "
+			+ "If the queue is full, the chain waits till the writer catches up", 16);
+	final public Input<Integer> keyframeIntervalInput = new Input<>("keyframeInterval", "number of states between states that are stored in full. "
+			+ "States in between only store state nodes that changed since the previous state. "
+			+ "Set to 1 to store every state in full", 1);
+	final public Input<Integer> maxStatesInput = new Input<>("maxStates", "maximum number of states kept in the multi-state file. "
+			+ "When the file is full, every other state is dropped and states are stored half as often, "
+			+ "so the file holds a fixed size sample evenly spread over the chain. "
+			+ "Only available for xml format without delta states. Set to 0 to keep all states", 0);
 	
 	
-	PrintStream out;
+	volatile MultiStateSink out;
+	/** closes the current multi-state writer on exit, registered once **/
+	private Thread shutdownHook = null;
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+		if (maxStatesInput.get() > 0) {
+			if (multiStateFormatInput.get() != MultiStateFormat.xml) {
+				throw new IllegalArgumentException("maxStates requires multiStateFormat=xml");
+			}
+			if (keyframeIntervalInput.get() > 1) {
+				throw new IllegalArgumentException("maxStates cannot be combined with keyframeInterval > 1, "
+						+ "since dropping states would break delta states");
+			}
+		}
+	}
 	
 	@Override
 	public void setStateFileName(final String fileName) {
@@ -29,13 +68,35 @@ public class StorableState extends State {
         }
         String multiStateFile = fileName + ".multi";
         try {
+        	if (out != null) {
+        		// make sure states of previous file are written before (re)opening
+        		out.close();
+        		out = null;
+        	}
         	
         	final File file = new File(multiStateFile);
-        	if (!file.exists() || System.getProperty("beast.resume") == null || Boolean.parseBoolean(System.getProperty("beast.resume")) == false) {
-        		out = new PrintStream(file);
+        	final boolean append = file.exists() && Boolean.parseBoolean(System.getProperty("beast.resume"));
+        	MultiStateSink sink;
+        	if (maxStatesInput.get() > 0) {
+        		sink = new BoundedMultiStateWriter(file, maxStatesInput.get(), append);
         	} else {
-                final FileOutputStream out2 = new FileOutputStream(multiStateFile, true);
-                out = new PrintStream(out2);
+        		DeltaSink deltaSink;
+        		if (multiStateFormatInput.get() == MultiStateFormat.binary) {
+        			deltaSink = new BinaryMultiStateWriter(file, append);
+        		} else {
+        			deltaSink = new MultiStateWriter(file, append);
+        		}
+        		// delta detection runs on the writer thread when async=true
+        		sink = keyframeIntervalInput.get() > 1 ? new DeltaMultiStateWriter(deltaSink, keyframeIntervalInput.get()) : deltaSink;
+        	}
+        	out = sink;
+        	if (asyncInput.get()) {
+        		out = new AsyncMultiStateWriter(out, queueSizeInput.get());
+        		if (shutdownHook == null) {
+        			// BEAST ends with System.exit(), so make sure the last states reach the disk
+        			shutdownHook = new Thread(this::closeMultiState);
+        			Runtime.getRuntime().addShutdownHook(shutdownHook);
+        		}
         	}
         } catch (IOException e) {
         	throw new RuntimeException("Could not open file " + multiStateFile + " for writing: " + e.getMessage());
@@ -51,11 +112,32 @@ public class StorableState extends State {
 		}
     	
         try {
-            out.print(toXML(sample));
+        	out.write(stateNodeInput.get(), sample);
+        	if (!asyncInput.get()) {
+        		out.flush();
+        	}
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+	/** close the writer that is current when the hook runs, earlier writers are closed when the file is reopened **/
+	private void closeMultiState() {
+		MultiStateSink current = out;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				Log.err.println("Could not close multi-state file: " + e.getMessage());
+			}
+		}
+	}
+
+	/** blocks till all states stored so far are written to the multi-state file **/
+	public void flushMultiState() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
 
 }
@@ -1,16 +1,19 @@
 package online;
 
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -34,6 +37,9 @@ import beast.base.util.Randomizer;
 import beast.base.parser.XMLParserException;
 import online.math.DistributionComparator;
 import online.math.DistributionComparator.ConvergenceCriterion;
+import online.multistate.MultiStateSource;
+import online.multistate.MultiStateWriter;
+import online.operators.PartitionRandomizer;
 
 @Description("Create tree and trace files extending an input multiple-state file with different set of taxa")
 public class TraceExpander extends BaseStateExpander {
@@ -79,12 +85,12 @@ public class TraceExpander extends BaseStateExpander {
 	private List<Logger> loggers;
 	private Model model1, model2;
 	private long sampleNr;
-	private BufferedReader fin;
+	private MultiStateSource fin;
 	private String multiStateInputFile;
-	private PrintStream multiStateOut;
+	private MultiStateWriter multiStateOut;
 	private boolean autoConverge;
 	private int cycle;
-	private int currentSample = 0, sampleCount, availableSamples, currentSampleNr = 0;
+	private int firstState = 0, sampleCount, availableSamples;
 	private ConvergenceCriterion [] criteria;
 
 	@Override
@@ -105,6 +111,7 @@ public class TraceExpander extends BaseStateExpander {
 		cycle = 0;
 		boolean isResuming = importModels();
 		sampleCount = sampleCountInput.get();
+        fin = MultiStateSource.open(multiStateInputFile);
 		int n = getStateCount();
 		if (n == 0) {
 			throw new IllegalArgumentException("Cannot find any states in the multi state file");
@@ -170,13 +177,13 @@ public class TraceExpander extends BaseStateExpander {
 			long cycleStart = System.currentTimeMillis();
 			cycle++;
 			isResuming = true;
-			multiStateOut = new PrintStream(xml2Path + ".state.multi.tmp");
+			multiStateOut = new MultiStateWriter(new File(xml2Path + ".state.multi.tmp"), false);
 			multiStateInputFile = xml2Path + ".state.multi";
-	        fin = new BufferedReader(new FileReader(multiStateInputFile));
+	        fin = MultiStateSource.open(multiStateInputFile);
 
 			initLoggers(cycle);
 			
-			sampleNr = 0; currentSample = 0; currentSampleNr = 0;
+			sampleNr = 0; firstState = 0;
 			if (nrOfThreads == 1) {
 				processUnThreaded(true);
 			} else {
@@ -334,21 +341,21 @@ public class TraceExpander extends BaseStateExpander {
 		} else {
 			model2 = getModelFromFile(xml2Input.get());
 		}
-		multiStateOut = new PrintStream(xml2Input.get().getAbsolutePath() + ".state.multi.tmp");
+		multiStateOut = new MultiStateWriter(new File(xml2Input.get().getAbsolutePath() + ".state.multi.tmp"), false);
 		return isResuming;
 	}
 
 	private void close(int cycle, String xml2Path) throws IOException {
 		fin.close();
+		multiStateOut.close();
 
 		for (Logger logger : loggers) {
 			logger.close();
 		}
 					
-		Files.move(
-				new File(xml2Path + ".state.multi.tmp").toPath(), 
-				new File(xml2Path + ".state.multi").toPath(),
-				java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		MultiStateWriter.move(
+				new File(xml2Path + ".state.multi.tmp"), 
+				new File(xml2Path + ".state.multi"));
 	}
 	
 	private void combine(int cycle, String xml2Path) throws IOException {
@@ -386,36 +393,33 @@ public class TraceExpander extends BaseStateExpander {
 
 	// skip burn-in states
     private int skipBurnin(boolean isResuming, int n) throws IOException {
-        fin = new BufferedReader(new FileReader(multiStateInputFile));
 		int burnIn = isResuming ? 0 : burnInPercentageInput.get() * n / 100;
 		if (burnIn > 0) {
 			Log.info("Skipping " + burnIn + " states as burn-in");
 		}
-		for (int i = 0; i < burnIn; i++) {
-			while (fin.ready()) {
-				String str = fin.readLine();
-				if (str.startsWith("</itsabeastystatewerein>")) {
-					break;
-				}
-			}
-		}
+		firstState = burnIn;
 		return burnIn;
 	}
 
 
+	/** Processes samples from its own deque. Once that runs out, it steals samples from
+	 * the end of the deque of the worker with most samples left, so all workers stay busy 
+	 * till the last sample is done, even though the time per sample varies a lot. **/
 	class CoreRunnable implements Runnable {
-    	int from; 
-    	int to;
+    	final Deque<Integer> samples = new ConcurrentLinkedDeque<>();
     	boolean afterBurnOnly;
     	Model model1, model2;
     	BaseStateExpander expander;
 
-        CoreRunnable(int from, int to, boolean afterBurnOnly) {
-    		this.from = from;
-    		this.to = to;
+        CoreRunnable(boolean afterBurnOnly) {
     		this.afterBurnOnly = afterBurnOnly;
     		
         	expander = new BaseStateExpander(chainLengthInput.get());
+        	expander.placementInput.setValue(placementInput.get(), expander);
+        	expander.placementThreadsInput.setValue(placementThreadsInput.get(), expander);
+        	expander.beamWidthInput.setValue(beamWidthInput.get(), expander);
+        	expander.neighboursInput.setValue(neighboursInput.get(), expander);
+        	expander.cachePlacementsInput.setValue(cachePlacementsInput.get(), expander);
         	
 
     		try {
@@ -445,32 +449,59 @@ public class TraceExpander extends BaseStateExpander {
 
         @Override
 		public void run() {
+        	Integer i = null;
             try {
-            	for (int i = from; i < to; i++) {
-        			String xml = nextState();
+            	// states are read through the offset index, so no cursor is shared between workers
+            	while ((i = nextSample()) != null) {
+        			int k = getStateIndex(i);
+        			seedSample(i);
         			
         			if (!afterBurnOnly) {
-        				model1.state.fromXML(xml);
+        				fin.restoreState(k, model1.state);
         				List<String> additions = expander.step1UpdateState(model1, model2);
         				expander.step2OptimiseState(model2, additions);
             			expander.step3RunMCMC(model2);
         			} else {
-        				model2.state.fromXML(xml);
+        				fin.restoreState(k, model2.state);
             			expander.step3RunMCMC(model2);
         			}
 
-        			logState(model2);
+        			publishState(i, model2);
             	}
             	
     	        // release memory
     			expander.optimiser = null;
+    			expander.close();
+    			PartitionRandomizer.clear();
             } catch (Exception e) {
-                Log.err.println("Something went wrong in a calculation of " + from + " " + to + ": " + e.getMessage());
+                Log.err.println("Something went wrong in a calculation of sample " + i + ": " + e.getMessage());
                 e.printStackTrace();
                 System.exit(1);
             }
             countDown.countDown();
         }
+
+        /** next sample of own deque, or one stolen from another worker, or null if all samples are taken **/
+        private Integer nextSample() {
+        	Integer i = samples.pollFirst();
+        	while (i == null) {
+        		CoreRunnable victim = null;
+        		int mostLeft = 0;
+        		for (CoreRunnable other : coreRunnable) {
+        			int left = other.samples.size();
+        			if (left > mostLeft) {
+        				mostLeft = left;
+        				victim = other;
+        			}
+        		}
+        		if (victim == null) {
+        			return null;
+        		}
+        		// victim may have emptied its deque in the mean time, in which case we look again
+        		i = victim.samples.pollLast();
+        	}
+        	return i;
+        }
     } // CoreRunnable
     
 	private CoreRunnable [] coreRunnable;
@@ -494,12 +525,10 @@ public class TraceExpander extends BaseStateExpander {
 	private void processThreaded(boolean afterBurnOnly)  throws IOException, InterruptedException {
         countDown = new CountDownLatch(nrOfThreads);
         // kick off the threads
-        int from = 0;
-        int delta = Math.max(1, sampleCount / nrOfThreads); 
-        int to = delta;
         if (coreRunnable == null) {
         	coreRunnable = new CoreRunnable[nrOfThreads];
         }
+        results = new ArrayBlockingQueue<>(2 * nrOfThreads);
 		PrintStream stdout = System.out;
 		PrintStream stderr = System.err;
         if (!verboseInput.get()) {
@@ -509,17 +538,25 @@ public class TraceExpander extends BaseStateExpander {
         }
         for (int i = 0; i < nrOfThreads; i++) {
         	if (coreRunnable[i] == null) {
-        		coreRunnable[i] = new CoreRunnable(from, to, afterBurnOnly);
+        		coreRunnable[i] = new CoreRunnable(afterBurnOnly);
         	} else {
         		coreRunnable[i].afterBurnOnly = afterBurnOnly;
         	}
+        	// initially, each worker gets a contiguous slice of the samples
+        	int from = (int)((long) i * sampleCount / nrOfThreads);
+        	int to = (int)((i + 1L) * sampleCount / nrOfThreads);
+        	coreRunnable[i].samples.clear();
+        	for (int j = from; j < to; j++) {
+        		coreRunnable[i].samples.add(j);
+        	}
+        	// workers started earlier may find nothing to steal while later ones are being set up,
+        	// but every worker always processes what is left in its own deque
             exec.execute(coreRunnable[i]);
-            from = to;
-            to += delta;
-            if (to > sampleCount) {
-            	to = sampleCount;
-            }
         }
+        // all models of the run are made, so release the parsed templates
+        ModelCache.clear();
+        // this thread is the only one writing output while the workers are busy
+        writeResults();
         countDown.await();
         if (!verboseInput.get()) {
     		Log.setLevel(Log.Level.info);
@@ -555,20 +592,23 @@ public class TraceExpander extends BaseStateExpander {
 	    	        model2.operatorSchedule.setStateFileName(stateFile);
 				}
 			}
+			// all models of the run are made, so release the parsed templates
+			ModelCache.clear();
 
 		}
 
         for (int i = 0; i < sampleCount; i++) {
 			// get state from file
-			String xml = nextState();
+			int k = getStateIndex(i);
+			seedSample(i);
 			
 			if (!afterBurnOnly) {
-				model1.state.fromXML(xml);
+				fin.restoreState(k, model1.state);
 				List<String> additions = step1UpdateState(model1, model2);
 				step2OptimiseState(model2, additions);
 				step3RunMCMC(model2);
 			} else {
-				model2.state.fromXML(xml);
+				fin.restoreState(k, model2.state);
 				step3RunMCMC(model2);
 			}
 
@@ -577,89 +617,104 @@ public class TraceExpander extends BaseStateExpander {
         
         // release memory
         optimiser = null;
+        close();
+        PartitionRandomizer.clear();
 	}
 
-	
-	private String prevStartState = null;
-	synchronized private String nextState() throws IOException {
-		int target = (currentSampleNr + 1) * availableSamples / sampleCount;
-		if (target > availableSamples) {
-			target = availableSamples;
-		}
-		if (currentSample == target) {
-			if (prevStartState == null) {
-				StringBuilder b = new StringBuilder();
-				while (fin.ready()) {
-					String str = fin.readLine();
-					b.append(str);
-					if (str.startsWith("</itsabeastystatewerein>")) {
-						prevStartState = b.toString();
-						currentSampleNr++;
-						return b.toString();
-					}
-				}				
-			}
-			return prevStartState;
-		}
-		
-		StringBuilder b = new StringBuilder();
-		while (fin.ready()) {
-			String str = fin.readLine();
-			b.append(str);
-			if (str.startsWith("</itsabeastystatewerein>")) {
-				currentSample++;
-				if (currentSample == target) {
-					prevStartState = b.toString();
-					currentSampleNr++;
-					return b.toString();
-				} else {
-					b.delete(0, b.length());
-				}
-			}
+	/** give current thread its own random number stream for the i-th sample of this cycle, 
+	 * from which partition operators draw instead of the shared Randomizer **/
+	private void seedSample(int i) {
+		if (seedInput.get() != null) {
+			PartitionRandomizer.setSeed(seedInput.get(), ((long) cycle << 32) + i);
 		}
-		if (prevStartState != null) {
+	}
+
+	
+	/** index in multi-state file of the i-th of sampleCount samples evenly selected from 
+	 * the availableSamples states following burn-in **/
+	private int getStateIndex(int i) {
+		int target = (int)((i + 1L) * availableSamples / sampleCount) - 1;
+		if (target < 0) {
+			target = 0;
+		}
+		if (target >= availableSamples) {
 			Log.warning("Ran out of states in state file ");
-			Log.warning("target = " + target);
-			Log.warning("currentSampleNr = " + currentSampleNr);
-			Log.warning("availableSamples = " + availableSamples);
-			Log.warning("sampleCount = " + sampleCount);
-			return prevStartState;
+			target = availableSamples - 1;
 		}
-		throw new RuntimeException("Ran out of states in state file");
+		return firstState + target;
 	}
 
-	/** counts number of states in state file **/
+	/** number of states in the opened state file, using its offset index **/
 	private int getStateCount() throws IOException {
-        BufferedReader fin = new BufferedReader(new FileReader(multiStateInputFile));
-        String str = null;
-        int n = 0;
-        while (fin.ready()) {
-            str = fin.readLine();
-            if (str.startsWith("<itsabeastystatewerein")) {
-            	n++;
-            }
-        }
-        fin.close();
-		return n;
+		return fin.getStateCount();
 	}
 
-	synchronized private void logState(Model model) throws IOException {
-		
-		
-		State other = model.mcmc2.startStateInput.get();
+	/** result of processing a sample, handed from workers to the thread writing output **/
+	static class SampleResult {
+		final int sample;
+		final List<StateNode> stateNodes;
+
+		SampleResult(int sample, List<StateNode> stateNodes) {
+			this.sample = sample;
+			this.stateNodes = stateNodes;
+		}
+	}
+
+	private BlockingQueue<SampleResult> results;
+
+	/** called by workers: put copy of the state of the model on the result queue **/
+	private void publishState(int sample, Model model) throws IOException, InterruptedException {
+		storeOperatorSchedule(model);
+		List<StateNode> stateNodes = model.mcmc2.startStateInput.get().stateNodeInput.get();
+		List<StateNode> copy = new ArrayList<>(stateNodes.size());
+		for (StateNode stateNode : stateNodes) {
+			copy.add(stateNode.copy());
+		}
+		results.put(new SampleResult(sample, copy));
+	}
+
+	/** writes results of all sampleCount samples in order of sample number,
+	 * irrespective of the order in which workers finish them. 
+	 * Whatever is on the queue is processed as one batch, and files are flushed once per batch. **/
+	private void writeResults() throws IOException, InterruptedException {
+		PriorityQueue<SampleResult> pending = new PriorityQueue<>(Comparator.comparingInt(r -> r.sample));
+		List<SampleResult> batch = new ArrayList<>();
+		int next = 0;
+		while (next < sampleCount) {
+			batch.add(results.take());
+			results.drainTo(batch);
+			pending.addAll(batch);
+			batch.clear();
+			while (!pending.isEmpty() && pending.peek().sample == next) {
+				logState(pending.poll().stateNodes);
+				next++;
+			}
+			if (multiStateOut != null) {
+				multiStateOut.flush();
+			}
+		}
+	}
+
+	private void logState(Model model) throws IOException {
+		storeOperatorSchedule(model);
+		logState(model.mcmc2.startStateInput.get().stateNodeInput.get());
+	}
+
+	synchronized private void storeOperatorSchedule(Model model) throws IOException {
 		PrintStream sf = new PrintStream(new File(xml2Input.get().getPath()+".state"));
 		sf.println("<itsabeastystatewerein>");
 		sf.println("</itsabeastystatewerein>");
 		sf.close();
 		// TODO: set operator schedule
 		model.operatorSchedule.storeToFile();
+	}
 
+	/** log state consisting of stateNodes, which is only ever done by a single thread **/
+	private void logState(List<StateNode> stateNodes) throws IOException {
 		State state = model2.state;
-		if (state != other) {
+		if (state.stateNodeInput.get() != stateNodes) {
 			for (int i = 0; i < state.getNrOfStateNodes(); i++) {
-				StateNode s1 = state.getStateNode(i);
-				StateNode s2 = other.getStateNode(i);
-				s1.assignFrom(s2);
+				Util.copyStateNode(stateNodes.get(i), state.getStateNode(i));
 			}
 		}
 		
@@ -677,7 +732,7 @@ public class TraceExpander extends BaseStateExpander {
 		}
 		
 		if (multiStateOut != null) {
-			multiStateOut.println(other.toXML(sampleNr));
+			multiStateOut.write(stateNodes, sampleNr);
 		}
 		sampleNr++;
 		
@@ -4,7 +4,9 @@ import java.util.HashMap;
 import java.util.Map;
 
 import beast.base.core.BEASTInterface;
+import beast.base.inference.StateNode;
 import beast.base.inference.parameter.Parameter;
+import beast.base.evolution.tree.Tree;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.parser.XMLParserException;
 
@@ -102,6 +104,21 @@ public class Util {
 			return false;
 		}
 
+		/** copy values of source into target. If both have the same shape, values are copied into 
+		 * the arrays and tree nodes target already has, without serialising or allocating anything **/
+		static public void copyStateNode(StateNode source, StateNode target) {
+			if (source == target) {
+				return;
+			}
+			if (source.getClass() == target.getClass() && (
+					source instanceof Tree && ((Tree) source).getNodeCount() == ((Tree) target).getNodeCount() ||
+					source instanceof Parameter<?> && ((Parameter<?>) source).getDimension() == ((Parameter<?>) target).getDimension())) {
+				target.assignFromFragile(source);
+			} else {
+				target.assignFrom(source);
+			}
+		}
+
 		static public Map<String, String> getParserDefinitions(String definitions) {
 	        Map<String, String> parserDefinitions = new HashMap<>();
 	        String [] strs = definitions.split("=",-1);
@@ -0,0 +1,137 @@
+package online.multistate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import beast.base.core.Log;
+import beast.base.inference.StateNode;
+
+/** Writes states to another MultiStateSink on a dedicated writer thread.
+ * The calling thread only takes a copy of the state nodes and puts it on a bounded queue,
+ * serialisation and disk writes happen on the writer thread. When the queue is full,
+ * the calling thread blocks till the writer thread catches up.
+ **/
+public class AsyncMultiStateWriter implements MultiStateSink {
+	private final static Snapshot END = new Snapshot(null, -1);
+
+	private static class Snapshot {
+		final List<StateNode> stateNodes;
+		final long sample;
+
+		Snapshot(List<StateNode> stateNodes, long sample) {
+			this.stateNodes = stateNodes;
+			this.sample = sample;
+		}
+	}
+
+	private final MultiStateSink sink;
+	private final BlockingQueue<Snapshot> queue;
+	private final Thread writerThread;
+
+	/** number of snapshots submitted and written, guarded by this **/
+	private long submitted = 0, written = 0;
+	private volatile IOException error = null;
+	private boolean closed = false;
+
+	public AsyncMultiStateWriter(MultiStateSink sink, int queueSize) {
+		this.sink = sink;
+		queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+		writerThread = new Thread(this::drain, "multi-state writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public void write(List<StateNode> stateNodes, long sample) throws IOException {
+		checkError();
+		List<StateNode> copy = new ArrayList<>(stateNodes.size());
+		for (StateNode stateNode : stateNodes) {
+			copy.add(stateNode.copy());
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Writing to closed multi-state writer");
+			}
+			submitted++;
+		}
+		try {
+			queue.put(new Snapshot(copy, sample));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while queueing state " + sample);
+		}
+	}
+
+	private void drain() {
+		try {
+			while (true) {
+				Snapshot snapshot = queue.take();
+				if (snapshot == END) {
+					break;
+				}
+				try {
+					if (error == null) {
+						sink.write(snapshot.stateNodes, snapshot.sample);
+						if (queue.isEmpty()) {
+							// flush whenever the writer catches up with the chain
+							sink.flush();
+						}
+					}
+				} catch (IOException e) {
+					Log.err.println("Could not write state " + snapshot.sample + ": " + e.getMessage());
+					error = e;
+				}
+				synchronized (this) {
+					written++;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** blocks till all states written so far are on disk **/
+	@Override
+	public void flush() throws IOException {
+		synchronized (this) {
+			while (written < submitted && writerThread.isAlive()) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while flushing multi-state file");
+				}
+			}
+		}
+		checkError();
+		sink.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		flush();
+		try {
+			queue.put(END);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sink.close();
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+}
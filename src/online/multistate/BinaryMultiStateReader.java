@@ -0,0 +1,244 @@
+package online.multistate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
+import beast.base.inference.parameter.RealParameter;
+
+/** Random access to states in a binary multi-state file written by BinaryMultiStateWriter.
+ * Records are length prefixed, so the index is obtained by hopping from record to record
+ * instead of scanning the content of the file.
+ **/
+public class BinaryMultiStateReader implements MultiStateSource {
+	private MappedFile mappedFile;
+	private MultiStateIndex index;
+
+	public BinaryMultiStateReader(File file) throws IOException {
+		if (!MultiStateSource.isBinary(file)) {
+			throw new IOException("File " + file.getPath() + " is not a binary multi-state file");
+		}
+		mappedFile = new MappedFile(file);
+		index = new MultiStateIndex();
+		long size = mappedFile.size();
+		long pos = BinaryMultiStateWriter.MAGIC.length;
+		while (pos + 4 + 8 + 4 <= size) {
+			ByteBuffer header = mappedFile.slice(pos, 4 + 8 + 4);
+			int length = header.getInt(0);
+			if (pos + 4 + length > size) {
+				// incomplete record, e.g. because the chain is still writing
+				break;
+			}
+			index.add(header.getLong(4), pos + 4, length, header.getInt(4 + 8) < 0);
+			pos += 4 + length;
+		}
+	}
+
+	@Override
+	public int getStateCount() {
+		return index.getStateCount();
+	}
+
+	@Override
+	public long getSample(int k) {
+		return index.getSample(k);
+	}
+
+	@Override
+	public void restoreState(int k, State state) throws IOException {
+		for (int i = index.getKeyframe(k); i <= k; i++) {
+			applyState(i, state);
+		}
+	}
+
+	@Override
+	public void applyState(int k, State state) throws IOException {
+		ByteBuffer buf = mappedFile.slice(index.getOffset(k), index.getLength(k));
+		long sample = buf.getLong();
+		int stateNodeCount = buf.getInt();
+		if (stateNodeCount < 0) {
+			// delta state
+			stateNodeCount = ~stateNodeCount;
+		}
+		List<StateNode> stateNodes = state.stateNodeInput.get();
+		for (int i = 0; i < stateNodeCount; i++) {
+			String id = readString(buf);
+			StateNode node = getStateNode(stateNodes, id, i);
+			readStateNode(buf, node, state, sample);
+		}
+	}
+
+	/** find state node by ID, trying the one at the same position first **/
+	private StateNode getStateNode(List<StateNode> stateNodes, String id, int i) {
+		if (i < stateNodes.size() && id.equals(stateNodes.get(i).getID())) {
+			return stateNodes.get(i);
+		}
+		for (StateNode node : stateNodes) {
+			if (id.equals(node.getID())) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/** restore state node from buffer, or skip its content if node == null **/
+	static void readStateNode(ByteBuffer buf, StateNode node, State state, long sample) throws IOException {
+		byte type = buf.get();
+		switch (type) {
+		case BinaryMultiStateWriter.TREE: {
+				int n = buf.getInt();
+				int [] parent = new int[n];
+				for (int i = 0; i < n; i++) {
+					parent[i] = buf.getInt();
+				}
+				byte [] position = new byte[n];
+				buf.get(position);
+				double [] height = new double[n];
+				for (int i = 0; i < n; i++) {
+					height[i] = buf.getDouble();
+				}
+				if (node != null) {
+					restoreTree((Tree) node, parent, position, height);
+				}
+			}
+			break;
+		case BinaryMultiStateWriter.REAL: {
+				int dim = buf.getInt();
+				int minorDim = buf.getInt();
+				double lower = buf.getDouble();
+				double upper = buf.getDouble();
+				if (node != null) {
+					RealParameter p = (RealParameter) node;
+					restoreDimension(p, dim, minorDim);
+					p.setLower(lower);
+					p.setUpper(upper);
+					for (int i = 0; i < dim; i++) {
+						p.setValue(i, buf.getDouble());
+					}
+				} else {
+					buf.position(buf.position() + dim * 8);
+				}
+			}
+			break;
+		case BinaryMultiStateWriter.INTEGER: {
+				int dim = buf.getInt();
+				int minorDim = buf.getInt();
+				int lower = buf.getInt();
+				int upper = buf.getInt();
+				if (node != null) {
+					IntegerParameter p = (IntegerParameter) node;
+					restoreDimension(p, dim, minorDim);
+					p.setLower(lower);
+					p.setUpper(upper);
+					for (int i = 0; i < dim; i++) {
+						p.setValue(i, buf.getInt());
+					}
+				} else {
+					buf.position(buf.position() + dim * 4);
+				}
+			}
+			break;
+		case BinaryMultiStateWriter.BOOLEAN: {
+				int dim = buf.getInt();
+				int minorDim = buf.getInt();
+				if (node != null) {
+					BooleanParameter p = (BooleanParameter) node;
+					restoreDimension(p, dim, minorDim);
+					for (int i = 0; i < dim; i++) {
+						p.setValue(i, buf.get() != 0);
+					}
+				} else {
+					buf.position(buf.position() + dim);
+				}
+			}
+			break;
+		case BinaryMultiStateWriter.XML: {
+				String xml = readString(buf);
+				if (node != null) {
+					state.fromXML("<itsabeastystatewerein version='2.0' sample='" + sample + "'>\n" + xml + "</itsabeastystatewerein>\n");
+				}
+			}
+			break;
+		default:
+			throw new IOException("Unrecognised state node type " + (char) type + " in binary multi-state file");
+		}
+	}
+
+	/** values are written into the arrays the parameter already has, which are only replaced if the dimension differs **/
+	private static void restoreDimension(Parameter<?> p, int dim, int minorDim) {
+		if (p.getDimension() != dim) {
+			p.setDimension(dim);
+		}
+		if (minorDim > 0) {
+			((Parameter.Base<?>) p).setMinorDimension(minorDim);
+		}
+	}
+
+	/** rebuild tree from parent array, reusing the nodes of the tree if it has as many nodes,
+	 * otherwise taking taxon names from the leaves with the same number in the current tree **/
+	private static void restoreTree(Tree tree, int [] parent, byte [] position, double [] height) {
+		int n = parent.length;
+		boolean inPlace = n == tree.getNodeCount();
+		int leafNodeCount = tree.getLeafNodeCount();
+		Node [] oldNodes = tree.getNodesAsArray();
+		Node [] nodes = inPlace ? oldNodes : new Node[n];
+		for (int i = 0; i < n; i++) {
+			if (inPlace) {
+				nodes[i].removeAllChildren(false);
+				nodes[i].setParent(null, false);
+			} else {
+				nodes[i] = new Node();
+				nodes[i].setNr(i);
+			}
+			nodes[i].setHeight(height[i]);
+		}
+		Node root = null;
+		int maxPosition = 0;
+		for (int i = 0; i < n; i++) {
+			maxPosition = Math.max(maxPosition, position[i]);
+			if (parent[i] < 0) {
+				root = nodes[i];
+			}
+		}
+		// add children in the order they had in the original tree
+		for (int p = 0; p <= maxPosition; p++) {
+			for (int i = 0; i < n; i++) {
+				if (parent[i] >= 0 && position[i] == p) {
+					nodes[parent[i]].addChild(nodes[i]);
+				}
+			}
+		}
+		if (inPlace) {
+			tree.setRoot(root);
+		} else {
+			// leaves are the nodes without children, which need not be as many as in the current tree
+			for (int i = 0; i < n && i < leafNodeCount; i++) {
+				if (nodes[i].isLeaf()) {
+					nodes[i].setID(oldNodes[i].getID());
+				}
+			}
+			tree.assignFromWithoutID(new Tree(root));
+		}
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getInt();
+		byte [] bytes = new byte[length];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mappedFile.close();
+	}
+}
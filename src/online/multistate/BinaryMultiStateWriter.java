@@ -0,0 +1,167 @@
+package online.multistate;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+
+/** Writes states to a multi-state file in compact binary form.
+ *
+ * The file starts with the MAGIC header, followed by one record per state:
+ * int record length (excluding this int), long sample, int number of state nodes (bitwise complemented for delta
+ * states, which only contain the state nodes that changed since the previous state, so empty deltas are negative too),
+ * followed for every state node by its ID (int length + UTF-8 bytes), a type byte and
+ * the values of the state node:
+ * TREE: int node count, int[] parent node numbers (-1 for the root), byte[] position of node among
+ *       children of its parent, double[] node heights, all indexed by node number
+ * REAL: int dimension, int minor dimension, double lower, double upper, double[] values
+ * INTEGER: int dimension, int minor dimension, int lower, int upper, int[] values
+ * BOOLEAN: int dimension, int minor dimension, boolean[] values
+ * XML: int length + UTF-8 bytes of the XML of the state node, for any other type of state node
+ * All numbers are big-endian.
+ **/
+public class BinaryMultiStateWriter implements DeltaSink {
+	final static byte [] MAGIC = {'B', 'M', 'S', 'T', 'A', 'T', 'E', 1};
+
+	final static byte TREE = 'T';
+	final static byte REAL = 'R';
+	final static byte INTEGER = 'I';
+	final static byte BOOLEAN = 'B';
+	final static byte XML = 'X';
+
+	private DataOutputStream out;
+	private ByteArrayOutputStream buffer;
+	private DataOutputStream record;
+
+	/**
+	 * @param file multi-state file to write to
+	 * @param append if true and the file exists, states are appended to the file
+	 */
+	public BinaryMultiStateWriter(File file, boolean append) throws IOException {
+		boolean writeHeader = true;
+		if (append && file.exists() && file.length() > 0) {
+			if (!MultiStateSource.isBinary(file)) {
+				throw new IOException("Cannot append binary states to " + file.getPath() + " since it is not a binary multi-state file");
+			}
+			writeHeader = false;
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !writeHeader), 1 << 16));
+		if (writeHeader) {
+			out.write(MAGIC);
+		}
+		buffer = new ByteArrayOutputStream(1 << 16);
+		record = new DataOutputStream(buffer);
+	}
+
+	@Override
+	public void write(List<StateNode> stateNodes, long sample) throws IOException {
+		write(stateNodes, sample, false);
+	}
+
+	@Override
+	public void writeDelta(List<StateNode> changedStateNodes, long sample) throws IOException {
+		write(changedStateNodes, sample, true);
+	}
+
+	private void write(List<StateNode> stateNodes, long sample, boolean delta) throws IOException {
+		buffer.reset();
+		record.writeLong(sample);
+		record.writeInt(delta ? ~stateNodes.size() : stateNodes.size());
+		for (StateNode node : stateNodes) {
+			writeStateNode(record, node);
+		}
+		record.flush();
+		out.writeInt(buffer.size());
+		buffer.writeTo(out);
+	}
+
+	static void writeStateNode(DataOutputStream out, StateNode node) throws IOException {
+		writeString(out, node.getID());
+		if (node instanceof Tree) {
+			out.writeByte(TREE);
+			writeTree(out, (Tree) node);
+		} else if (node instanceof RealParameter) {
+			RealParameter p = (RealParameter) node;
+			out.writeByte(REAL);
+			out.writeInt(p.getDimension());
+			out.writeInt(p.getMinorDimension1());
+			out.writeDouble(p.getLower());
+			out.writeDouble(p.getUpper());
+			for (int i = 0; i < p.getDimension(); i++) {
+				out.writeDouble(p.getArrayValue(i));
+			}
+		} else if (node instanceof IntegerParameter) {
+			IntegerParameter p = (IntegerParameter) node;
+			out.writeByte(INTEGER);
+			out.writeInt(p.getDimension());
+			out.writeInt(p.getMinorDimension1());
+			out.writeInt(p.getLower());
+			out.writeInt(p.getUpper());
+			for (int i = 0; i < p.getDimension(); i++) {
+				out.writeInt(p.getNativeValue(i));
+			}
+		} else if (node instanceof BooleanParameter) {
+			BooleanParameter p = (BooleanParameter) node;
+			out.writeByte(BOOLEAN);
+			out.writeInt(p.getDimension());
+			out.writeInt(p.getMinorDimension1());
+			for (int i = 0; i < p.getDimension(); i++) {
+				out.writeBoolean(p.getValue(i));
+			}
+		} else {
+			out.writeByte(XML);
+			writeString(out, node.toXML());
+		}
+	}
+
+	private static void writeTree(DataOutputStream out, Tree tree) throws IOException {
+		Node [] nodes = tree.getNodesAsArray();
+		int n = tree.getNodeCount();
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			Node parent = nodes[i].getParent();
+			out.writeInt(parent == null ? -1 : parent.getNr());
+		}
+		for (int i = 0; i < n; i++) {
+			Node node = nodes[i];
+			Node parent = node.getParent();
+			if (parent == null || parent.getLeft() == node) {
+				out.writeByte(0);
+			} else if (parent.getRight() == node) {
+				out.writeByte(1);
+			} else {
+				out.writeByte(parent.getChildren().indexOf(node));
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			out.writeDouble(nodes[i].getHeight());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte [] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
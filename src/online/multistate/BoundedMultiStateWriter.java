@@ -0,0 +1,214 @@
+package online.multistate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.core.Log;
+import beast.base.inference.StateNode;
+
+/** Writes states to a multi-state file that never holds more than maxStates states.
+ *
+ * States are kept evenly spaced over the chain by stratified thinning: states are stored
+ * in fixed size slots till all maxStates slots are filled, then every other state is dropped
+ * by moving the remaining states to the first half of the slots, and from then on only
+ * states at twice the previous spacing are stored. So the file always holds between maxStates/2
+ * and maxStates states uniformly spread over the chain, in chain order, which is what TraceExpander
+ * expects when picking evenly spaced states after burn-in.
+ * The last state written is kept as well, even if it is not on the grid of evenly spaced states,
+ * so the file always ends with the final state of the chain. It is held in memory and stored in the
+ * slot after the last evenly spaced state when flushing, until the next state on the grid replaces it.
+ *
+ * Slots are padded with spaces up to the slot size, so states can be rewritten in place. If a state
+ * does not fit its slot, all slots are enlarged. The offset index sidecar is rewritten on every flush.
+ * Since states can be dropped, deltas could not be reconstructed, so this is not a DeltaSink.
+ **/
+public class BoundedMultiStateWriter implements MultiStateSink {
+	private final File file;
+	private final int maxStates;
+	private RandomAccessFile out;
+
+	private int slotSize = 0;
+	private int stateCount = 0;
+	private long [] samples;
+	private int [] lengths;
+	/** last state written if it is not on the grid, null otherwise **/
+	private byte [] tail = null;
+	private long tailSample;
+	private boolean indexIsDirty = false;
+
+	/**
+	 * @param file multi-state file to write to
+	 * @param maxStates maximum number of states kept in the file
+	 * @param append if true and the file exists, the states in the file are kept
+	 * (thinned if necessary) and new states are added to them
+	 */
+	public BoundedMultiStateWriter(File file, int maxStates, boolean append) throws IOException {
+		if (maxStates < 2) {
+			throw new IllegalArgumentException("maxStates should be at least 2, not " + maxStates);
+		}
+		this.file = file;
+		this.maxStates = maxStates;
+		samples = new long[maxStates];
+		lengths = new int[maxStates];
+
+		if (append && file.exists() && file.length() > 0) {
+			// pass states of previous run through a fresh writer, so the layout is
+			// right irrespective of how the existing file was written
+			File tmpFile = new File(file.getPath() + ".tmp");
+			BoundedMultiStateWriter tmp = new BoundedMultiStateWriter(tmpFile, maxStates, false);
+			MultiStateReader in = new MultiStateReader(file);
+			for (int k = 0; k < in.getStateCount(); k++) {
+				if (in.isDelta(k)) {
+					throw new IOException("Cannot append to " + file.getPath() + " with maxStates since it contains delta states");
+				}
+				tmp.write(in.getState(k), in.getSample(k));
+			}
+			in.close();
+			tmp.close();
+			MultiStateWriter.move(tmpFile, file);
+
+			out = new RandomAccessFile(file, "rw");
+			stateCount = tmp.stateCount;
+			slotSize = tmp.slotSize;
+			System.arraycopy(tmp.samples, 0, samples, 0, stateCount);
+			System.arraycopy(tmp.lengths, 0, lengths, 0, stateCount);
+			tail = tmp.tail;
+			tailSample = tmp.tailSample;
+		} else {
+			out = new RandomAccessFile(file, "rw");
+			out.setLength(0);
+			indexIsDirty = true;
+		}
+	}
+
+	/** write a single state, as produced by State.toXML(sample) **/
+	public void write(String stateXML, long sample) throws IOException {
+		byte [] bytes = stateXML.getBytes();
+		if (bytes.length > 0 && bytes[bytes.length - 1] != '\n') {
+			bytes = Arrays.copyOf(bytes, bytes.length + 1);
+			bytes[bytes.length - 1] = '\n';
+		}
+		indexIsDirty = true;
+		if (!isOnGrid(sample)) {
+			// keep it in case it is the last state of the chain
+			tail = bytes;
+			tailSample = sample;
+			return;
+		}
+		tail = null;
+
+		if (bytes.length > slotSize) {
+			growSlots(bytes.length);
+		}
+		writeSlot(stateCount, bytes, bytes.length);
+		samples[stateCount] = sample;
+		lengths[stateCount] = bytes.length;
+		stateCount++;
+
+		if (stateCount == maxStates) {
+			thin();
+			if (samples[stateCount - 1] != sample) {
+				// thinning dropped this state, but it is the last one so far
+				tail = bytes;
+				tailSample = sample;
+			}
+		}
+	}
+
+	/** states off the grid are serialised too, since any of them may turn out to be the last one **/
+	@Override
+	public void write(List<StateNode> stateNodes, long sample) throws IOException {
+		write(MultiStateWriter.toXML(stateNodes, sample, false), sample);
+	}
+
+	/** whether a state at this sample is on the current grid of evenly spaced states **/
+	private boolean isOnGrid(long sample) {
+		return stateCount < 2 || sample >= samples[stateCount - 1] + samples[1] - samples[0];
+	}
+
+	private void growSlots(int length) throws IOException {
+		// leave some room for states growing a bit, e.g. due to number formatting
+		resizeSlots(length + length / 4 + 1);
+	}
+
+	/** keep states 0, 2, 4, ... in slots 0, 1, 2, ... **/
+	private void thin() throws IOException {
+		byte [] bytes = new byte[slotSize];
+		int newCount = (stateCount + 1) / 2;
+		for (int i = 1; i < newCount; i++) {
+			out.seek((long) 2 * i * slotSize);
+			out.readFully(bytes, 0, lengths[2 * i]);
+			writeSlot(i, bytes, lengths[2 * i]);
+			samples[i] = samples[2 * i];
+			lengths[i] = lengths[2 * i];
+		}
+		stateCount = newCount;
+		out.setLength((long) stateCount * slotSize);
+		Log.debug("Thinned multi-state file " + file.getPath() + " to " + stateCount + " states");
+	}
+
+	/** move states to larger slots, starting at the last slot so no state is overwritten before it is moved **/
+	private void resizeSlots(int newSlotSize) throws IOException {
+		byte [] bytes = new byte[slotSize];
+		for (int i = stateCount - 1; i >= 0; i--) {
+			out.seek((long) i * slotSize);
+			out.readFully(bytes, 0, lengths[i]);
+			writeSlot(i, newSlotSize, bytes, lengths[i]);
+		}
+		slotSize = newSlotSize;
+		// drop anything beyond the moved states, such as a tail stored before, so it cannot be mistaken for a state
+		out.setLength((long) stateCount * slotSize);
+	}
+
+	/** write state to slot i, padded with spaces and a final new line so start tags of
+	 * subsequent slots remain at the start of a line **/
+	private void writeSlot(int i, byte [] bytes, int length) throws IOException {
+		writeSlot(i, slotSize, bytes, length);
+	}
+
+	private void writeSlot(int i, int slotSize, byte [] bytes, int length) throws IOException {
+		byte [] slot = new byte[slotSize];
+		System.arraycopy(bytes, 0, slot, 0, length);
+		if (length < slotSize) {
+			Arrays.fill(slot, length, slotSize - 1, (byte) ' ');
+			slot[slotSize - 1] = '\n';
+		}
+		out.seek((long) i * slotSize);
+		out.write(slot);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (indexIsDirty) {
+			if (tail != null) {
+				if (tail.length > slotSize) {
+					growSlots(tail.length);
+				}
+				writeSlot(stateCount, tail, tail.length);
+			}
+			MultiStateIndex index = new MultiStateIndex();
+			for (int i = 0; i < stateCount; i++) {
+				index.add(samples[i], (long) i * slotSize, lengths[i]);
+			}
+			if (tail != null) {
+				index.add(tailSample, (long) stateCount * slotSize, tail.length);
+			}
+			index.save(MultiStateIndex.getIndexFile(file));
+			indexIsDirty = false;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	/** number of states in the file, including the last state if it is not on the grid **/
+	public int getStateCount() {
+		return stateCount + (tail == null ? 0 : 1);
+	}
+}
@@ -0,0 +1,128 @@
+package online.multistate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.Parameter;
+
+/** Writes every keyframeInterval-th state in full to a DeltaSink, and the states in between
+ * as delta, containing only the state nodes that changed since the previous state.
+ * Since most MCMC steps only change a few state nodes, this reduces the size of multi-state files
+ * considerably for states with many state nodes.
+ * Changes are detected by comparing the values of state nodes with those of the previous state,
+ * so it does not rely on the dirty flags of state nodes, which are reset after every MCMC step.
+ **/
+public class DeltaMultiStateWriter implements MultiStateSink {
+	private final DeltaSink sink;
+	private final int keyframeInterval;
+
+	/** number of states written since the last keyframe **/
+	private int sinceKeyframe = 0;
+	/** IDs and values of state nodes of the previous state, null if no state was written yet **/
+	private String [] prevIDs = null;
+	private Object [] prevValues;
+
+	/**
+	 * @param sink destination of full and delta states
+	 * @param keyframeInterval number of states between full states, 1 means every state is written in full
+	 */
+	public DeltaMultiStateWriter(DeltaSink sink, int keyframeInterval) {
+		if (keyframeInterval < 1) {
+			throw new IllegalArgumentException("keyframeInterval should be at least 1, not " + keyframeInterval);
+		}
+		this.sink = sink;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	@Override
+	public void write(List<StateNode> stateNodes, long sample) throws IOException {
+		int n = stateNodes.size();
+		Object [] values = new Object[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = getValues(stateNodes.get(i));
+		}
+
+		if (sinceKeyframe % keyframeInterval == 0 || !sameStateNodes(stateNodes)) {
+			sink.write(stateNodes, sample);
+			sinceKeyframe = 0;
+			prevIDs = new String[n];
+			for (int i = 0; i < n; i++) {
+				prevIDs[i] = stateNodes.get(i).getID();
+			}
+		} else {
+			List<StateNode> changed = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				if (!sameValues(values[i], prevValues[i])) {
+					changed.add(stateNodes.get(i));
+				}
+			}
+			sink.writeDelta(changed, sample);
+		}
+		prevValues = values;
+		sinceKeyframe++;
+	}
+
+	/** true if the state nodes are the same as those of the previous state **/
+	private boolean sameStateNodes(List<StateNode> stateNodes) {
+		if (prevIDs == null || prevIDs.length != stateNodes.size()) {
+			return false;
+		}
+		for (int i = 0; i < prevIDs.length; i++) {
+			if (!prevIDs[i].equals(stateNodes.get(i).getID())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** values of state node in a form that can be compared cheaply:
+	 * parameter values, tree topology and heights as primitive arrays, and XML for anything else **/
+	private static Object getValues(StateNode stateNode) {
+		if (stateNode instanceof Parameter<?>) {
+			Parameter<?> p = (Parameter<?>) stateNode;
+			int dim = p.getDimension();
+			double [] values = new double[dim + 1];
+			values[0] = p.getMinorDimension1();
+			for (int i = 0; i < dim; i++) {
+				values[i + 1] = p.getArrayValue(i);
+			}
+			return values;
+		}
+		if (stateNode instanceof Tree) {
+			Tree tree = (Tree) stateNode;
+			Node [] nodes = tree.getNodesAsArray();
+			int n = tree.getNodeCount();
+			double [] values = new double[n * 3];
+			for (int i = 0; i < n; i++) {
+				Node parent = nodes[i].getParent();
+				values[i] = parent == null ? -1 : parent.getNr();
+				values[n + i] = parent == null ? -1 : parent.getChildren().indexOf(nodes[i]);
+				values[2 * n + i] = nodes[i].getHeight();
+			}
+			return values;
+		}
+		return stateNode.toXML();
+	}
+
+	private static boolean sameValues(Object values, Object prevValues) {
+		if (values instanceof double[] && prevValues instanceof double[]) {
+			return Arrays.equals((double[]) values, (double[]) prevValues);
+		}
+		return values.equals(prevValues);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		sink.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		sink.close();
+	}
+}
@@ -0,0 +1,14 @@
+package online.multistate;
+
+import java.io.IOException;
+import java.util.List;
+
+import beast.base.inference.StateNode;
+
+/** Destination for states that can also store delta states, which only contain
+ * the state nodes that changed since the previous state **/
+public interface DeltaSink extends MultiStateSink {
+
+	/** store a single state as delta, containing only the state nodes that changed since the previous state **/
+	public void writeDelta(List<StateNode> changedStateNodes, long sample) throws IOException;
+}
@@ -0,0 +1,58 @@
+package online.multistate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** Read-only memory mapped file of arbitrary size.
+ * The file is mapped in regions, so slices can be handed out without copying.
+ * Since only duplicates of the mapped buffers are handed out, slices can be
+ * obtained concurrently from multiple threads.
+ **/
+class MappedFile {
+	/** regions start every REGION_SIZE bytes, and extend REGION_OVERLAP bytes into the next region
+	 * so that most slices fit inside a single region **/
+	final static long REGION_SIZE = 1L << 30;
+	final static long REGION_OVERLAP = 1L << 26;
+
+	private FileChannel channel;
+	private MappedByteBuffer [] regions;
+	private long size;
+
+	MappedFile(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		size = channel.size();
+		// mapping only reserves address space, so map all regions up front
+		regions = new MappedByteBuffer[(int)((size + REGION_SIZE - 1) / REGION_SIZE)];
+		for (int r = 0; r < regions.length; r++) {
+			long start = r * REGION_SIZE;
+			regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE + REGION_OVERLAP, size - start));
+		}
+	}
+
+	long size() {
+		return size;
+	}
+
+	/** read-only slice of the mapped file **/
+	ByteBuffer slice(long offset, int length) throws IOException {
+		int r = (int)(offset / REGION_SIZE);
+		long regionStart = r * REGION_SIZE;
+		MappedByteBuffer region = regions[r];
+		if (offset + length <= regionStart + region.capacity()) {
+			ByteBuffer buf = region.duplicate();
+			buf.position((int)(offset - regionStart));
+			buf.limit((int)(offset - regionStart) + length);
+			return buf.slice();
+		}
+		// slice crosses region boundary: map it separately
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	void close() throws IOException {
+		channel.close();
+	}
+}
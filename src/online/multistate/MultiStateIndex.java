@@ -0,0 +1,323 @@
+package online.multistate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import beast.base.core.Log;
+
+/** Offset index for multi-state files, stored in a sidecar file with extension .idx
+ * The index maps state k (0-based, in file order) to sample number, byte offset and byte length
+ * of the k-th <itsabeastystatewerein>...</itsabeastystatewerein> block,
+ * so that readers can seek to any state without scanning the file.
+ * States can be stored in full (keyframes) or as delta, containing only the state nodes that changed
+ * since the previous state. A delta state is restored by restoring the last keyframe before it, and
+ * all delta states following that keyframe in order.
+ *
+ * Sidecar format is a sequence of fixed size big-endian records (long sample, long offset, int length),
+ * where a negative length indicates a delta state.
+ **/
+public class MultiStateIndex {
+	final static String START_TAG = "<itsabeastystatewerein";
+	final static String END_TAG = "</itsabeastystatewerein>";
+	final static int RECORD_SIZE = 8 + 8 + 4;
+	final static int SCAN_CHUNK = 1 << 28;
+	final static int SCAN_OVERLAP = 256;
+	final static String DELTA_ATTRIBUTE = "delta='true'";
+
+	private long [] samples;
+	private long [] offsets;
+	private int [] lengths;
+	private boolean [] isDelta;
+	private int stateCount;
+
+	public MultiStateIndex() {
+		samples = new long[16];
+		offsets = new long[16];
+		lengths = new int[16];
+		isDelta = new boolean[16];
+		stateCount = 0;
+	}
+
+	public int getStateCount() {
+		return stateCount;
+	}
+
+	public long getSample(int k) {
+		checkRange(k);
+		return samples[k];
+	}
+
+	public long getOffset(int k) {
+		checkRange(k);
+		return offsets[k];
+	}
+
+	public int getLength(int k) {
+		checkRange(k);
+		return lengths[k];
+	}
+
+	/** true if the k-th state only contains state nodes that changed since state k-1 **/
+	public boolean isDelta(int k) {
+		checkRange(k);
+		return isDelta[k];
+	}
+
+	/** index of the last complete state at or before state k **/
+	public int getKeyframe(int k) {
+		checkRange(k);
+		while (k > 0 && isDelta[k]) {
+			k--;
+		}
+		return k;
+	}
+
+	/** first byte after the last indexed state **/
+	public long getEnd() {
+		if (stateCount == 0) {
+			return 0;
+		}
+		return offsets[stateCount - 1] + lengths[stateCount - 1];
+	}
+
+	private void checkRange(int k) {
+		if (k < 0 || k >= stateCount) {
+			throw new IndexOutOfBoundsException("State " + k + " requested, but only " + stateCount + " states are indexed");
+		}
+	}
+
+	public void add(long sample, long offset, int length) {
+		add(sample, offset, length, false);
+	}
+
+	public void add(long sample, long offset, int length, boolean delta) {
+		if (stateCount == offsets.length) {
+			int newSize = stateCount * 2;
+			samples = Arrays.copyOf(samples, newSize);
+			offsets = Arrays.copyOf(offsets, newSize);
+			lengths = Arrays.copyOf(lengths, newSize);
+			isDelta = Arrays.copyOf(isDelta, newSize);
+		}
+		samples[stateCount] = sample;
+		offsets[stateCount] = offset;
+		lengths[stateCount] = length;
+		isDelta[stateCount] = delta;
+		stateCount++;
+	}
+
+	/** name of the sidecar index file associated with a multi-state file **/
+	public static File getIndexFile(File multiStateFile) {
+		return new File(multiStateFile.getPath() + ".idx");
+	}
+
+	/** write complete index to sidecar file, replacing any existing one **/
+	public void save(File indexFile) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		for (int k = 0; k < stateCount; k++) {
+			writeRecord(out, samples[k], offsets[k], lengths[k], isDelta[k]);
+		}
+		out.close();
+	}
+
+	static void writeRecord(DataOutputStream out, long sample, long offset, int length, boolean delta) throws IOException {
+		out.writeLong(sample);
+		out.writeLong(offset);
+		out.writeInt(delta ? -length : length);
+	}
+
+	/** read index from sidecar file. Incomplete trailing records are ignored **/
+	public static MultiStateIndex read(File indexFile) throws IOException {
+		MultiStateIndex index = new MultiStateIndex();
+		long recordCount = indexFile.length() / RECORD_SIZE;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			for (long i = 0; i < recordCount; i++) {
+				long sample = in.readLong();
+				long offset = in.readLong();
+				int length = in.readInt();
+				index.add(sample, offset, Math.abs(length), length < 0);
+			}
+		} catch (EOFException e) {
+			// ignore incomplete record
+		} finally {
+			in.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Obtain index for multi-state file.
+	 * If the sidecar exists it is used, and any states appended to the multi-state file
+	 * after the sidecar was last written are added by scanning the tail of the file.
+	 * If no (usable) sidecar exists, e.g. for multi-state files produced by older versions,
+	 * the index is built in a single pass over the file.
+	 * In both cases, an attempt is made to (re)write the sidecar if it changed.
+	 */
+	public static MultiStateIndex load(File multiStateFile) throws IOException {
+		File indexFile = getIndexFile(multiStateFile);
+		MultiStateIndex index = null;
+		if (indexFile.exists()) {
+			try {
+				index = read(indexFile);
+				if (!index.isConsistentWith(multiStateFile)) {
+					Log.warning("Index " + indexFile.getPath() + " does not match " + multiStateFile.getPath() + ", rebuilding index");
+					index = null;
+				}
+			} catch (IOException e) {
+				Log.warning("Could not read index " + indexFile.getPath() + ": " + e.getMessage());
+				index = null;
+			}
+		}
+		if (index == null) {
+			index = new MultiStateIndex();
+		}
+
+		int indexedCount = index.getStateCount();
+		if (index.getEnd() < multiStateFile.length()) {
+			index.scan(multiStateFile, index.getEnd());
+		}
+
+		if (index.getStateCount() != indexedCount || !indexFile.exists()) {
+			try {
+				index.save(indexFile);
+			} catch (IOException e) {
+				// sidecar is an optimisation only, e.g. the directory may be read-only
+				Log.debug("Could not write index " + indexFile.getPath() + ": " + e.getMessage());
+			}
+		}
+		return index;
+	}
+
+	/** build index for multi-state file in a single pass **/
+	public static MultiStateIndex build(File multiStateFile) throws IOException {
+		MultiStateIndex index = new MultiStateIndex();
+		index.scan(multiStateFile, 0);
+		return index;
+	}
+
+	/** check the index does not point beyond the end of the file, and that the last indexed state starts with a state tag **/
+	private boolean isConsistentWith(File multiStateFile) throws IOException {
+		if (stateCount == 0) {
+			return true;
+		}
+		if (getEnd() > multiStateFile.length()) {
+			return false;
+		}
+		byte [] tag = START_TAG.getBytes();
+		byte [] buf = new byte[tag.length];
+		RandomAccessFile in = new RandomAccessFile(multiStateFile, "r");
+		try {
+			in.seek(offsets[stateCount - 1]);
+			in.readFully(buf);
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(tag, buf);
+	}
+
+	/** add states found in multi-state file starting at byte offset start.
+	 * The file is memory mapped in chunks, and scanned for start and end tags at the start of lines.
+	 * Chunks overlap by SCAN_OVERLAP bytes, so tags (and the sample attribute) crossing a chunk 
+	 * boundary are still found, but only tags starting inside the chunk proper are processed. **/
+	private void scan(File multiStateFile, long start) throws IOException {
+		byte [] startTag = START_TAG.getBytes();
+		byte [] endTag = END_TAG.getBytes();
+		FileChannel channel = FileChannel.open(multiStateFile.toPath(), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			long pos = start;
+			long stateStart = -1;
+			long sample = 0;
+			boolean delta = false;
+			boolean atLineStart = true;
+			while (pos < size) {
+				int len = (int) Math.min(SCAN_CHUNK, size - pos);
+				int mapLen = (int) Math.min((long) len + SCAN_OVERLAP, size - pos);
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, mapLen);
+				for (int i = 0; i < len; i++) {
+					byte b = buf.get(i);
+					if (atLineStart && b == '<') {
+						if (matches(buf, i, mapLen, startTag)) {
+							stateStart = pos + i;
+							String attributes = readAttributes(buf, i + startTag.length, mapLen);
+							sample = parseSample(attributes);
+							delta = attributes.contains(DELTA_ATTRIBUTE);
+						} else if (stateStart >= 0 && matches(buf, i, mapLen, endTag)) {
+							// state ends at end of line containing end tag
+							int end = i + endTag.length;
+							while (end < mapLen && buf.get(end) != '\n') {
+								end++;
+							}
+							if (end < mapLen) {
+								end++;
+							}
+							add(sample, stateStart, (int)(pos + end - stateStart), delta);
+							stateStart = -1;
+						}
+					}
+					atLineStart = (b == '\n');
+				}
+				pos += len;
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static boolean matches(ByteBuffer buf, int i, int limit, byte [] tag) {
+		if (i + tag.length > limit) {
+			return false;
+		}
+		for (int j = 1; j < tag.length; j++) {
+			if (buf.get(i + j) != tag[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** attributes of <itsabeastystatewerein version='2.0' sample='123' delta='true'> 
+	 * starting at position i in buffer, up to the closing '>' **/
+	private static String readAttributes(ByteBuffer buf, int i, int limit) {
+		int end = i;
+		while (end < limit && end - i < SCAN_OVERLAP / 2 && buf.get(end) != '>') {
+			end++;
+		}
+		byte [] line = new byte[end - i];
+		for (int j = 0; j < line.length; j++) {
+			line[j] = buf.get(i + j);
+		}
+		return new String(line);
+	}
+
+	/** extract value of sample attribute from <itsabeastystatewerein version='2.0' sample='123'> **/
+	static long parseSample(String str) {
+		int i = str.indexOf("sample=");
+		if (i < 0) {
+			return 0;
+		}
+		i += "sample=".length() + 1;
+		int j = i;
+		while (j < str.length() && Character.isDigit(str.charAt(j))) {
+			j++;
+		}
+		if (j == i) {
+			return 0;
+		}
+		return Long.parseLong(str.substring(i, j));
+	}
+
+}
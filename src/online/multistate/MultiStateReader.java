@@ -0,0 +1,76 @@
+package online.multistate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import beast.base.inference.State;
+
+/** Random access to states in a multi-state file produced by StorableState, using its offset index.
+ * Delta states are restored by applying all states from the last keyframe onwards.
+ * The file is memory mapped, so states are handed out as slices of the mapped
+ * file without reading or copying lines, and can be retrieved concurrently from multiple threads.
+ **/
+public class MultiStateReader implements MultiStateSource {
+	private MappedFile mappedFile;
+	private MultiStateIndex index;
+	private File file;
+	private Charset charset = Charset.defaultCharset();
+
+	public MultiStateReader(String fileName) throws IOException {
+		this(new File(fileName));
+	}
+
+	public MultiStateReader(File file) throws IOException {
+		this.file = file;
+		index = MultiStateIndex.load(file);
+		mappedFile = new MappedFile(file);
+	}
+
+	@Override
+	public int getStateCount() {
+		return index.getStateCount();
+	}
+
+	@Override
+	public long getSample(int k) {
+		return index.getSample(k);
+	}
+
+	/** read-only slice of the mapped file containing the XML of the k-th state **/
+	public ByteBuffer getStateBuffer(int k) throws IOException {
+		return mappedFile.slice(index.getOffset(k), index.getLength(k));
+	}
+
+	/** XML of k-th state, which can be restored with State.fromXML() **/
+	public String getState(int k) throws IOException {
+		return charset.decode(getStateBuffer(k)).toString();
+	}
+
+	@Override
+	public void restoreState(int k, State state) throws IOException {
+		for (int i = index.getKeyframe(k); i <= k; i++) {
+			applyState(i, state);
+		}
+	}
+
+	@Override
+	public void applyState(int k, State state) throws IOException {
+		// State.fromXML only updates state nodes present in the XML
+		state.fromXML(getState(k));
+	}
+
+	public boolean isDelta(int k) {
+		return index.isDelta(k);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mappedFile.close();
+	}
+}
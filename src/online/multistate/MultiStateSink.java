@@ -0,0 +1,18 @@
+package online.multistate;
+
+import java.io.IOException;
+import java.util.List;
+
+import beast.base.inference.StateNode;
+
+/** Destination for states stored by StorableState **/
+public interface MultiStateSink {
+
+	/** store a single state consisting of the list of state nodes **/
+	public void write(List<StateNode> stateNodes, long sample) throws IOException;
+
+	/** make sure all states written so far are on disk **/
+	public void flush() throws IOException;
+
+	public void close() throws IOException;
+}
@@ -0,0 +1,58 @@
+package online.multistate;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import beast.base.inference.State;
+
+/** Random access to the states stored in a multi-state file, irrespective of the format of the file **/
+public interface MultiStateSource {
+
+	/** number of complete states in the file **/
+	public int getStateCount();
+
+	/** sample number associated with k-th state **/
+	public long getSample(int k);
+
+	/** restore the state nodes of state from the k-th state in the file.
+	 * Implementations allow concurrent calls for different target states. **/
+	public void restoreState(int k, State state) throws IOException;
+
+	/** apply only the state nodes stored in the k-th state to state. 
+	 * For delta states, this gives the k-th state only if state holds state k-1, 
+	 * which makes this the cheap way to visit all states in order. **/
+	public void applyState(int k, State state) throws IOException;
+
+	public void close() throws IOException;
+
+	/** open multi-state file, using the binary reader if the file starts with the binary header,
+	 * and the XML reader otherwise **/
+	public static MultiStateSource open(File file) throws IOException {
+		if (isBinary(file)) {
+			return new BinaryMultiStateReader(file);
+		}
+		return new MultiStateReader(file);
+	}
+
+	public static MultiStateSource open(String fileName) throws IOException {
+		return open(new File(fileName));
+	}
+
+	public static boolean isBinary(File file) throws IOException {
+		byte [] magic = BinaryMultiStateWriter.MAGIC;
+		if (file.length() < magic.length) {
+			return false;
+		}
+		byte [] header = new byte[magic.length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(header);
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(magic, header);
+	}
+}
@@ -0,0 +1,123 @@
+package online.multistate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import beast.base.core.Log;
+import beast.base.inference.StateNode;
+
+/** Writes states to a multi-state file, while maintaining its offset index sidecar **/
+public class MultiStateWriter implements DeltaSink {
+	private OutputStream out;
+	private DataOutputStream indexOut;
+	private long offset;
+	private File file;
+
+	/**
+	 * @param file multi-state file to write to
+	 * @param append if true, states are appended to an existing multi-state file,
+	 * and the index of the existing file is brought up to date before appending
+	 */
+	public MultiStateWriter(File file, boolean append) throws IOException {
+		this.file = file;
+		File indexFile = MultiStateIndex.getIndexFile(file);
+		if (append && file.exists()) {
+			// make sure index covers all states already in the file
+			MultiStateIndex index = MultiStateIndex.load(file);
+			offset = file.length();
+			if (index.getEnd() != offset) {
+				Log.warning("Multi-state file " + file.getPath() + " ends with an incomplete state");
+			}
+			out = new BufferedOutputStream(new FileOutputStream(file, true));
+			indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, indexFile.exists())));
+		} else {
+			offset = 0;
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		}
+	}
+
+	/** write a single state, as produced by State.toXML(sample) **/
+	public void write(String stateXML, long sample) throws IOException {
+		int end = stateXML.indexOf('>');
+		boolean delta = end > 0 && stateXML.substring(0, end).contains(MultiStateIndex.DELTA_ATTRIBUTE);
+		write(stateXML, sample, delta);
+	}
+
+	private void write(String stateXML, long sample, boolean delta) throws IOException {
+		byte [] bytes = stateXML.getBytes();
+		int length = bytes.length;
+		if (length > 0 && bytes[length - 1] != '\n') {
+			// make sure the closing tag is followed by a new line
+			out.write(bytes);
+			out.write('\n');
+			length++;
+		} else {
+			out.write(bytes);
+		}
+		MultiStateIndex.writeRecord(indexOut, sample, offset, length, delta);
+		offset += length;
+	}
+
+	/** write a single state consisting of the list of state nodes, formatted as State.toXML(sample) does **/
+	@Override
+	public void write(List<StateNode> stateNodes, long sample) throws IOException {
+		write(toXML(stateNodes, sample, false), sample, false);
+	}
+
+	/** write a delta state, marked by a delta='true' attribute in the opening tag **/
+	@Override
+	public void writeDelta(List<StateNode> changedStateNodes, long sample) throws IOException {
+		write(toXML(changedStateNodes, sample, true), sample, true);
+	}
+
+	static String toXML(List<StateNode> stateNodes, long sample, boolean delta) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("<itsabeastystatewerein version='2.0' sample='").append(sample).append("'");
+		if (delta) {
+			buf.append(' ').append(MultiStateIndex.DELTA_ATTRIBUTE);
+		}
+		buf.append(">\n");
+		for (StateNode stateNode : stateNodes) {
+			buf.append(stateNode.toXML());
+		}
+		buf.append("</itsabeastystatewerein>\n");
+		return buf.toString();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		indexOut.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+		indexOut.close();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** move multi-state file and its index to another location, replacing existing ones **/
+	public static void move(File from, File to) throws IOException {
+		Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		File fromIndex = MultiStateIndex.getIndexFile(from);
+		File toIndex = MultiStateIndex.getIndexFile(to);
+		if (fromIndex.exists()) {
+			Files.move(fromIndex.toPath(), toIndex.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} else if (toIndex.exists()) {
+			// stale index
+			toIndex.delete();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package online.operators;
 
+import java.util.List;
+
 import beast.base.core.Description;
 import beast.base.inference.Operator;
 import beast.base.inference.OperatorSchedule;
@@ -21,14 +23,12 @@ public class AfterburnOperatorSchedule extends OperatorSchedule {
 	public Operator selectOperator() {
 		count++;
 		if (count < limit) {
-			int attempt = 0;
-			while (attempt < 1000) {
-				Operator operator = super.selectOperator();
-				if (operator instanceof PartitionOperator) {
-					return operator;
-				}
+			// chosen by weight from PartitionRandomizer, so the choice uses the stream of a TraceExpander worker
+			Operator operator = selectPartitionOperator();
+			if (operator != null) {
+				return operator;
 			}
-			// there are probably no PartitionOperators
+			// there are no PartitionOperators
 			// carry on with a standard operator
 		}
 		if (subschedulesInput.get().size() != 0) {
@@ -36,4 +36,30 @@ public class AfterburnOperatorSchedule extends OperatorSchedule {
 		}
 		return super.selectOperator();
 	}
+
+	/** PartitionOperator drawn with probability proportional to its weight, or null if there are none **/
+	private Operator selectPartitionOperator() {
+		List<Operator> operators = getOperators();
+		double totalWeight = 0;
+		for (Operator operator : operators) {
+			if (operator instanceof PartitionOperator) {
+				totalWeight += operator.getWeight();
+			}
+		}
+		if (totalWeight <= 0) {
+			return null;
+		}
+		double u = PartitionRandomizer.nextDouble() * totalWeight;
+		Operator selected = null;
+		for (Operator operator : operators) {
+			if (operator instanceof PartitionOperator) {
+				selected = operator;
+				u -= operator.getWeight();
+				if (u < 0) {
+					break;
+				}
+			}
+		}
+		return selected;
+	}
 }
@@ -55,7 +55,6 @@ import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
-import beast.base.util.Randomizer;
 
 
 /*
@@ -165,7 +164,7 @@ public class ExchangeOnPartition extends TreeOperator implements PartitionOperat
 
         final int c2 = sisg(parentIndex) + sisg(uncle);
 
-        final Node i = (Randomizer.nextBoolean() ? parentIndex.getLeft() : parentIndex.getRight());
+        final Node i = (PartitionRandomizer.nextBoolean() ? parentIndex.getLeft() : parentIndex.getRight());
         exchangeNodes(i, uncle, parentIndex, grandParent);
 
 //        this.i = i;
@@ -239,4 +238,9 @@ public class ExchangeOnPartition extends TreeOperator implements PartitionOperat
         replace(jP, j, i);
         // postcondition p -> j & p -> i
     }
+
+	@Override
+	public TreePartition getPartition() {
+		return partition;
+	}
 }
@@ -4,4 +4,7 @@ import beast.base.core.Description;
 
 @Description("Identifies operators that are partition aware")
 public interface PartitionOperator {
+
+	/** partition of the tree the operator works on **/
+	public TreePartition getPartition();
 }
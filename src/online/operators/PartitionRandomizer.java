@@ -0,0 +1,57 @@
+package online.operators;
+
+import beast.base.util.MersenneTwisterFast;
+import beast.base.util.Randomizer;
+
+/** Random numbers for partition operators, drawn from a stream owned by the current thread.
+ *
+ * TraceExpander workers each seed their own stream from the seed of the run and the number
+ * of the sample being processed, so workers do not contend for the global Randomizer in the
+ * partition operators. Acceptance and standard BEAST operators still draw from Randomizer,
+ * so a run is not reproducible across numbers of threads.
+ * Threads without their own stream use Randomizer, so operators behave as before in a normal BEAST run.
+ **/
+public class PartitionRandomizer {
+	private final static ThreadLocal<MersenneTwisterFast> stream = new ThreadLocal<>();
+
+	private PartitionRandomizer() {
+	}
+
+	/** give current thread its own stream, derived from seed and sample number **/
+	public static void setSeed(long seed, long sample) {
+		long s = mix(mix(seed) + sample);
+		MersenneTwisterFast random = stream.get();
+		if (random == null) {
+			stream.set(new MersenneTwisterFast(s));
+		} else {
+			random.setSeed(s);
+		}
+	}
+
+	/** let the current thread use Randomizer again **/
+	public static void clear() {
+		stream.remove();
+	}
+
+	public static int nextInt(int n) {
+		MersenneTwisterFast random = stream.get();
+		return random == null ? Randomizer.nextInt(n) : random.nextInt(n);
+	}
+
+	public static double nextDouble() {
+		MersenneTwisterFast random = stream.get();
+		return random == null ? Randomizer.nextDouble() : random.nextDouble();
+	}
+
+	public static boolean nextBoolean() {
+		MersenneTwisterFast random = stream.get();
+		return random == null ? Randomizer.nextBoolean() : random.nextBoolean();
+	}
+
+	/** SplitMix64 finaliser, so that seeds of consecutive samples give unrelated streams **/
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -5,7 +5,6 @@ import beast.base.core.Input;
 import beast.base.inference.Operator;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.IntegerParameter;
-import beast.base.util.Randomizer;
 
 @Description("A random walk operator that selects a random dimension of the integer parameter from a partition "
 		+ "and perturbs the value a random amount within +/- windowSize.")
@@ -48,7 +47,7 @@ public class RandomWalkOnParition extends Operator implements PartitionOperator
         				partition.getRandomNode();
         
         final int value = param.getValue(i);
-        final int newValue = value + Randomizer.nextInt(2 * windowSize + 1) - windowSize;
+        final int newValue = value + PartitionRandomizer.nextInt(2 * windowSize + 1) - windowSize;
 
         if (newValue < param.getLower() || newValue > param.getUpper()) {
             // invalid move, can be rejected immediately
@@ -69,4 +68,8 @@ public class RandomWalkOnParition extends Operator implements PartitionOperator
         // nothing to optimise
     }
 
+	@Override
+	public TreePartition getPartition() {
+		return partition;
+	}
 }
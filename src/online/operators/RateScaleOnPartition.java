@@ -8,7 +8,6 @@ import beast.base.core.Input.Validate;
 import beast.base.inference.Operator;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.evolution.tree.TreeInterface;
-import beast.base.util.Randomizer;
 
 @Description("Scale rate parameter for relaxed clock, but only change values in a given tree partition")
 public class RateScaleOnPartition extends Operator implements PartitionOperator {
@@ -68,7 +67,7 @@ public class RateScaleOnPartition extends Operator implements PartitionOperator
     }
 
     protected double getScaler() {
-        return (scaleFactor + (Randomizer.nextDouble() * ((1.0 / scaleFactor) - scaleFactor)));
+        return (scaleFactor + (PartitionRandomizer.nextDouble() * ((1.0 / scaleFactor) - scaleFactor)));
     }
 
 
@@ -111,4 +110,9 @@ public class RateScaleOnPartition extends Operator implements PartitionOperator
             return "Try setting scaleFactor to about " + formatter.format(sf);
         } else return "";
     }
+
+	@Override
+	public TreePartition getPartition() {
+		return partition;
+	}
 }
@@ -6,7 +6,6 @@ import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.evolution.tree.TreeInterface;
-import beast.base.util.Randomizer;
 
 @Description("Specifies connected subset of nodes in a tree")
 public class TreePartition extends BEASTObject {
@@ -32,9 +31,20 @@ public class TreePartition extends BEASTObject {
 	public void update() {
 		partition = partitionInput.get().getValues();
 	}
+
+	/** node numbers in the partition **/
+	public Integer [] getNodeNrs() {
+		return partition;
+	}
+
+	/** change the set of nodes of the partition, without touching the partition input, 
+	 * so operators using this partition can be retargeted without rebuilding them **/
+	public void setNodeNrs(Integer [] nodeNrs) {
+		partition = nodeNrs.clone();
+	}
 	
 	public int getRandomNode() {
-		int result = partition[Randomizer.nextInt(partition.length)];
+		int result = partition[PartitionRandomizer.nextInt(partition.length)];
 		return result;
 	}
 	
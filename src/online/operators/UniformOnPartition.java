@@ -57,7 +57,6 @@ import beast.base.evolution.operator.TreeOperator;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
-import beast.base.util.Randomizer;
 
 
 @Description("Randomly selects true internal tree node (i.e. not the root) and move node height uniformly in interval " +
@@ -122,7 +121,7 @@ public class UniformOnPartition extends TreeOperator implements PartitionOperato
 //
 //            return 0.0;
 
-            double scale = (scaleFactor + (Randomizer.nextDouble() * ((1.0 / scaleFactor) - scaleFactor)));
+            double scale = (scaleFactor + (PartitionRandomizer.nextDouble() * ((1.0 / scaleFactor) - scaleFactor)));
             final double newHeight = root.getHeight() * scale;
 
             if (newHeight < Math.max(root.getLeft().getHeight(), root.getRight().getHeight())) {
@@ -142,7 +141,7 @@ public class UniformOnPartition extends TreeOperator implements PartitionOperato
         
         final double upper = node.getParent().getHeight();
         final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
-        final double newValue = (Randomizer.nextDouble() * (upper - lower)) + lower;
+        final double newValue = (PartitionRandomizer.nextDouble() * (upper - lower)) + lower;
         node.setHeight(newValue);
 
         return 0.0;
@@ -200,4 +199,8 @@ public class UniformOnPartition extends TreeOperator implements PartitionOperato
         } else return "";
     }
 
+	@Override
+	public TreePartition getPartition() {
+		return partition;
+	}
 }
@@ -13,8 +13,6 @@ import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.inference.MCMC;
-import beast.base.inference.State;
-import beast.base.inference.StateNode;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.evolution.tree.Node;
 import online.Model;
@@ -49,22 +47,19 @@ public class StateOptimiserByLocalMCMC extends BEASTObject implements StateOptim
 		}
 		TreePartition partition = determinePartition(model, additions);
 		if (mcmc == null) {
-			mcmc = PartitionMCMC.newMCMC(model, partition, chainLengthInput.get(), definitionsInput.get());
+			mcmc = PartitionMCMC.newMCMC(model, partition, chainLengthInput.get());
+		} else {
+			((PartitionMCMC) mcmc).setPartition(partition);
 		}
 
 		try {
-			((PartitionMCMC) mcmc).initState(model.state.toXML(0));
+			((PartitionMCMC) mcmc).initState(model.state);
 			((PartitionMCMC) mcmc).setProportion(1.0);
 
 			mcmc.run();
 
-			State state = mcmc.startStateInput.get();
-			State other = model.state;
-			for (int i = 0; i < state.getNrOfStateNodes(); i++) {
-				StateNode s1 = other.getStateNode(i);
-				StateNode s2 = state.getStateNode(i);
-				s1.assignFrom(s2);
-			}
+			// only state nodes the chain can change need to be copied back
+			((PartitionMCMC) mcmc).storeState(model.state);
 		} catch (IOException | SAXException | ParserConfigurationException e) {
 			throw new RuntimeException(e);
 		}
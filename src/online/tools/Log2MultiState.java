@@ -1,7 +1,6 @@
 package online.tools;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.List;
 
@@ -25,6 +24,7 @@ import beast.base.core.Log;
 import beast.base.evolution.tree.Tree;
 import beastfx.app.tools.LogAnalyser;
 import beast.base.parser.XMLParser;
+import online.multistate.MultiStateWriter;
 
 @Description("Convert tree and trace log into multi-state file that can be used with TraceExpander")
 public class Log2MultiState extends Runnable {
@@ -54,7 +54,8 @@ public class Log2MultiState extends Runnable {
 		MCMC mcmc = (MCMC) run;
 		State state = mcmc.startStateInput.get();
 
-		StringBuilder multiStates = new StringBuilder();
+		MultiStateWriter out = openOutput();
+		StringBuilder multiState = new StringBuilder();
 		for (int i = 0; i < trace.getTrace(0).length; i++) {
 			Tree tree = treeSet.next();
 			if (tree == null) {
@@ -63,16 +64,20 @@ public class Log2MultiState extends Runnable {
 				Log.warning("WARNING: Use logcombiner with the `-resample` option to synchronise trace and tree logs.\n");
 				break;
 			}
-			addState(state, multiStates, trace, i, tree);
+			// first column of the trace log holds the sample number, which matches that of the i-th tree
+			long sample = Math.round(trace.getTrace(0)[i]);
+			multiState.delete(0, multiState.length());
+			addState(state, multiState, trace, i, tree, sample);
+			out.write(multiState.toString(), sample);
 		}
 		
-		output(multiStates);
+		out.close();
 		Log.warning("Done");
 	}
 
 	
-	private void addState(State state, StringBuilder buf, LogAnalyser trace, int i, Tree tree) {
-		buf.append("<itsabeastystatewerein version='2.0' sample='0'>\n");
+	private void addState(State state, StringBuilder buf, LogAnalyser trace, int i, Tree tree, long sample) {
+		buf.append("<itsabeastystatewerein version='2.0' sample='").append(sample).append("'>\n");
 		for (StateNode node : state.stateNodeInput.get()) {
 			if (node instanceof Tree) {
 				((Tree) node).assignFromWithoutID(tree);
@@ -191,15 +196,13 @@ public class Log2MultiState extends Runnable {
 		}
 	}
 
-	private void output(StringBuilder multiStates) throws IOException {
+	private MultiStateWriter openOutput() throws IOException {
 		String multiStateInputFile = multiStateFileInput.get().getPath();
 		if (multiStateInputFile == null || multiStateInputFile.equals("[[none]]")) {
 			multiStateInputFile = xmlInput.get().getPath() + ".state.multi"; 
 		}
 		Log.warning("writing to file " + multiStateInputFile);
-        FileWriter outfile = new FileWriter(new File(multiStateInputFile));
-        outfile.write(multiStates.toString());
-        outfile.close();
+		return new MultiStateWriter(new File(multiStateInputFile), false);
 	}
 
 
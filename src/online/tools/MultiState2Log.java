@@ -1,10 +1,7 @@
 package online.tools;
 
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.IOException;
 
 import beastfx.app.tools.Application;
 import beastfx.app.util.XMLFile;
@@ -16,6 +13,7 @@ import beast.base.inference.Runnable;
 import beast.base.inference.State;
 import beast.base.core.Log;
 import beast.base.parser.XMLParser;
+import online.multistate.MultiStateSource;
 
 @Description("Convert multi-state file produced by StorableState to tree and trace logs")
 public class MultiState2Log extends Runnable {
@@ -53,20 +51,15 @@ public class MultiState2Log extends Runnable {
 			logger.init();
 		}
         
-		BufferedReader fin = new BufferedReader(new FileReader(multiStateInputFile));
-		String stateXML = null;
-		long sampleNr = 0;
-		do {
-			stateXML = nextState(fin);
-			if (stateXML != null) {
-				state.fromXML(stateXML);
-				state.robustlyCalcPosterior(mcmc.posteriorInput.get());
-				for (Logger logger : mcmc.loggersInput.get()) {
-					logger.log(sampleNr);
-				}
-				sampleNr++;
+		MultiStateSource fin = MultiStateSource.open(multiStateInputFile);
+		for (int sampleNr = 0; sampleNr < fin.getStateCount(); sampleNr++) {
+			// states are visited in order, so applying deltas to the previous state suffices
+			fin.applyState(sampleNr, state);
+			state.robustlyCalcPosterior(mcmc.posteriorInput.get());
+			for (Logger logger : mcmc.loggersInput.get()) {
+				logger.log(sampleNr);
 			}
-		} while (stateXML != null);
+		}
 
 		for (Logger logger : mcmc.loggersInput.get()) {
 			logger.close();
@@ -76,18 +69,6 @@ public class MultiState2Log extends Runnable {
         Log.warning("Done!");
 	}
 
-	private String nextState(BufferedReader fin) throws IOException {
-		StringBuilder b = new StringBuilder();
-		while (fin.ready()) {
-			String str = fin.readLine();
-			b.append(str);
-			if (str.startsWith("</itsabeastystatewerein>")) {
-				return b.toString();
-			}
-		}
-		return null;
-	}
-
 	public static void main(String[] args) throws Exception {
 		new Application(new MultiState2Log(), "Multi State to Log", args);
 	}
@@ -0,0 +1,94 @@
+package online.tools;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import beastfx.app.tools.Application;
+import beastfx.app.util.OutFile;
+import beastfx.app.util.XMLFile;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.inference.MCMC;
+import beast.base.inference.Runnable;
+import beast.base.inference.State;
+import beast.base.core.Log;
+import beast.base.parser.XMLParser;
+import online.StorableState.MultiStateFormat;
+import online.multistate.BinaryMultiStateWriter;
+import online.multistate.MultiStateSource;
+import online.multistate.MultiStateWriter;
+
+@Description("Convert multi-state file produced by StorableState between XML and binary format")
+public class MultiStateConverter extends Runnable {
+	final public Input<XMLFile> xmlInput = new Input<>("xml","BEAST XML file containing the state", new XMLFile("[[none]]"));
+	final public Input<File> multiStateFileInput = new Input<>("multiStateFile", "state file containing multiple states associated with XML file, in XML or binary format. "
+			+ "If not specified, use xml+\".state.multi\"", new File("[[none]]"));
+	final public Input<OutFile> outputInput = new Input<>("out", "output multi-state file", new OutFile("[[none]]"));
+	final public Input<MultiStateFormat> formatInput = new Input<>("format", "format of the output file", MultiStateFormat.binary, MultiStateFormat.values());
+
+
+	@Override
+	public void initAndValidate() {
+	}
+
+	@Override
+	public void run() throws Exception {
+		if (xmlInput.get() != null && !xmlInput.get().exists()) {
+			throw new IllegalArgumentException("Could not find XML file " + xmlInput.get().getName());
+		}
+
+		String multiStateInputFile = multiStateFileInput.get().getPath();
+		if (multiStateInputFile == null || multiStateInputFile.equals("[[none]]")) {
+			multiStateInputFile = xmlInput.get().getPath() + ".state.multi";
+		}
+		if (!new File(multiStateInputFile).exists()) {
+			throw new IllegalArgumentException("Could not find multi state file " + multiStateInputFile);
+		}
+		if (outputInput.get() == null || outputInput.get().getName().equals("[[none]]")) {
+			throw new IllegalArgumentException("Output file must be specified");
+		}
+		File outFile = outputInput.get();
+		if (outFile.getAbsoluteFile().equals(new File(multiStateInputFile).getAbsoluteFile())) {
+			throw new IllegalArgumentException("Output file must differ from input file");
+		}
+
+		XMLParser parser = new XMLParser();
+		Runnable run = parser.parseFile(xmlInput.get());
+		if (! (run instanceof MCMC)) {
+			throw new IllegalArgumentException("Expected MCMC analysis in xml file");
+		}
+		MCMC mcmc = (MCMC) run;
+		State state = mcmc.startStateInput.get();
+
+		MultiStateSource fin = MultiStateSource.open(multiStateInputFile);
+		Log.warning("Converting " + fin.getStateCount() + " states to " + formatInput.get() + " file " + outFile.getPath());
+		convert(fin, state, formatInput.get(), outFile);
+		fin.close();
+		Log.warning("Done!");
+	}
+
+	/** write all states of fin to outFile in format, visiting them in order with state **/
+	public static void convert(MultiStateSource fin, State state, MultiStateFormat format, File outFile) throws IOException {
+		if (format == MultiStateFormat.binary) {
+			BinaryMultiStateWriter out = new BinaryMultiStateWriter(outFile, false);
+			for (int k = 0; k < fin.getStateCount(); k++) {
+				fin.applyState(k, state);
+				out.write(state.stateNodeInput.get(), fin.getSample(k));
+			}
+			out.close();
+		} else {
+			MultiStateWriter out = new MultiStateWriter(outFile, false);
+			for (int k = 0; k < fin.getStateCount(); k++) {
+				fin.applyState(k, state);
+				out.write(state.toXML(fin.getSample(k)), fin.getSample(k));
+			}
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Application(new MultiStateConverter(), "Multi State Converter", args);
+	}
+
+}
@@ -0,0 +1,448 @@
+package online.treeexpander;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import beast.base.core.Description;
+import beast.base.core.Log;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.datatype.DataType;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.SubstitutionModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.parser.XMLParserException;
+import online.Model;
+
+@Description("Tree Expander that adds new taxa to the branch with highest tree likelihood. "
+		+ "All branches are scored in two traversals of the tree, using partial likelihoods "
+		+ "from below and from above each branch.")
+public class AllBranchExpander extends BinarySearchExpander {
+	private List<PlacementLikelihood> likelihoods = null;
+	private Model likelihoodModel = null;
+
+	/** all branches are scored anyway, so a placement cache is of no use **/
+	@Override
+	public void setPlacementCache(PlacementCache placementCache) {
+		throw new IllegalArgumentException("Placement cache is not supported when scoring all branches");
+	}
+
+	@Override
+	protected void positionAdditions(Model model2, String taxon) throws IOException, SAXException, ParserConfigurationException, XMLParserException {
+		if (likelihoodModel != model2) {
+			likelihoods = new ArrayList<>();
+			List<GenericTreeLikelihood> treeLikelihoods = new ArrayList<>();
+			collectTreeLikelihoods(model2.posterior, model2.tree, treeLikelihoods);
+			for (GenericTreeLikelihood likelihood : treeLikelihoods) {
+				if (likelihood.siteModelInput.get() instanceof SiteModel) {
+					likelihoods.add(new PlacementLikelihood(likelihood));
+				}
+			}
+			likelihoodModel = model2;
+			if (likelihoods.size() == 0) {
+				Log.warning("No tree likelihood with a site model found for " + model2.tree.getID() + ": using binary search to place taxa");
+			}
+		}
+		if (likelihoods.size() == 0) {
+			super.positionAdditions(model2, taxon);
+			return;
+		}
+
+		// bring substitution and clock models up to date with the state
+		calcOutgroupLogP(model2, model2.posterior);
+
+		Tree tree = model2.tree;
+		Node newTaxon = tree.getNode(map.get(taxon));
+		Node root = tree.getRoot();
+		Node subtree = root.getLeft() == newTaxon ? root.getRight() : root.getLeft();
+		double [] logL = scoreBranches(likelihoods, tree, newTaxon, surgery);
+
+		// new taxon stays above subtree unless another branch is better
+		Node best = subtree;
+		for (int i = 0; i < logL.length; i++) {
+			if (logL[i] > logL[best.getNr()]) {
+				best = tree.getNode(i);
+			}
+		}
+		Log.debug("[" + logL[best.getNr()] + "] " + taxon + " placed above node " + best.getNr());
+		if (best != subtree) {
+			internalNode = root;
+			positionOnBranch(newTaxon, best, tree);
+		}
+	}
+
+	/**
+	 * Log likelihood of placing newTaxon, a child of the root of tree, on the branch above every node
+	 * of the other subtree of the root, indexed by node number. The branch above the subtree is scored 
+	 * with newTaxon at the root, other branches with newTaxon joined halfway the branch, as 
+	 * positionOnBranch places it. Nodes outside the subtree score negative infinity.
+	 * Substitution, site and clock models are used as they are, so should be up to date with the state.
+	 */
+	public static double [] scoreBranches(GenericTreeLikelihood likelihood, Tree tree, Node newTaxon) {
+		if (!(likelihood.siteModelInput.get() instanceof SiteModel)) {
+			throw new IllegalArgumentException("Expected a tree likelihood with a SiteModel, not " + likelihood.siteModelInput.get().getClass().getName());
+		}
+		List<PlacementLikelihood> likelihoods = new ArrayList<>();
+		likelihoods.add(new PlacementLikelihood(likelihood));
+		return scoreBranches(likelihoods, tree, newTaxon, new TreeSurgery());
+	}
+
+	private static double [] scoreBranches(List<PlacementLikelihood> likelihoods, Tree tree, Node newTaxon, TreeSurgery surgery) {
+		Node root = tree.getRoot();
+		Node subtree = root.getLeft() == newTaxon ? root.getRight() : root.getLeft();
+		int count = surgery.postOrder(subtree);
+		Node [] postOrder = surgery.getOrder();
+
+		double [] logL = new double[tree.getNodeCount()];
+		for (PlacementLikelihood likelihood : likelihoods) {
+			likelihood.score(postOrder, count, subtree, newTaxon, root.getHeight(), logL);
+		}
+		boolean [] inSubtree = new boolean[logL.length];
+		for (int i = 0; i < count; i++) {
+			inSubtree[postOrder[i].getNr()] = true;
+		}
+		for (int i = 0; i < logL.length; i++) {
+			if (!inSubtree[i]) {
+				logL[i] = Double.NEGATIVE_INFINITY;
+			}
+		}
+		return logL;
+	}
+
+	/**
+	 * Partial likelihoods of a single tree likelihood, used to score placement of a new taxon on all branches.
+	 *
+	 * Lower partials (the likelihood of the data below a node) are calculated in a post-order traversal,
+	 * upper partials (the likelihood of the data outside the subtree below a branch, including the root
+	 * frequencies) in a pre-order traversal. The score of a branch combines the upper partial of the
+	 * branch, the lower partial of the node below it and the partial of the new taxon, joined at a node
+	 * halfway the branch. Partials are scaled per pattern to prevent underflow on large trees.
+	 *
+	 * As in TreeLikelihood, the categories of the site model only cover variable sites, and the proportion 
+	 * of invariant sites is added to the likelihood of constant patterns. Unless the tree likelihood uses
+	 * ambiguities, ambiguous codes are treated as missing data.
+	 */
+	private static class PlacementLikelihood {
+		final Alignment data;
+		final SiteModel siteModel;
+		final SubstitutionModel substModel;
+		final BranchRateModel branchRateModel;
+		final int stateCount, patternCount, categoryCount, size;
+		final boolean useAmbiguities;
+		/** states every taxon can have at a pattern, by pattern and state, as TreeLikelihood determines constant patterns **/
+		final boolean [] isInvariant;
+
+		double [] categoryRates, proportions, frequencies;
+		double proportionInvariant;
+		/** lower partials and their log scale factors, indexed by node number **/
+		double [][] lower = new double[0][], lowerScale = new double[0][];
+		/** upper, lower and new taxon transition matrices per category **/
+		final double [][] m1, m2, m3;
+		final double [] x, xScale, tmp1, tmp2;
+		/** partials on the stack of the pre-order traversal are recycled **/
+		final Deque<double[]> pool = new ArrayDeque<>(), scalePool = new ArrayDeque<>();
+
+		PlacementLikelihood(GenericTreeLikelihood likelihood) {
+			data = likelihood.dataInput.get();
+			siteModel = (SiteModel) likelihood.siteModelInput.get();
+			substModel = siteModel.getSubstitutionModel();
+			branchRateModel = likelihood.branchRateModelInput.get();
+			stateCount = data.getDataType().getStateCount();
+			patternCount = data.getPatternCount();
+			categoryCount = siteModel.getCategoryCount();
+			size = categoryCount * patternCount * stateCount;
+			m1 = new double[categoryCount][stateCount * stateCount];
+			m2 = new double[categoryCount][stateCount * stateCount];
+			m3 = new double[categoryCount][stateCount * stateCount];
+			x = new double[size];
+			xScale = new double[patternCount];
+			tmp1 = new double[size];
+			tmp2 = new double[size];
+			useAmbiguities = likelihood instanceof TreeLikelihood && ((TreeLikelihood) likelihood).m_useAmbiguities.get();
+
+			isInvariant = new boolean[patternCount * stateCount];
+			Arrays.fill(isInvariant, true);
+			DataType dataType = data.getDataType();
+			for (int p = 0; p < patternCount; p++) {
+				for (int code : data.getPattern(p)) {
+					if (useAmbiguities || !dataType.isAmbiguousCode(code)) {
+						boolean [] isStateSet = data.getStateSet(code);
+						for (int i = 0; i < stateCount; i++) {
+							isInvariant[p * stateCount + i] &= isStateSet[i];
+						}
+					}
+				}
+			}
+		}
+
+		/** add log likelihood of placing newTaxon on branch above each of the first count nodes in postOrder to logL, indexed by node number **/
+		void score(Node [] postOrder, int count, Node subtree, Node newTaxon, double rootHeight, double [] logL) {
+			categoryRates = siteModel.getCategoryRates(subtree);
+			proportions = siteModel.getCategoryProportions(subtree);
+			frequencies = substModel.getFrequencies();
+			proportionInvariant = siteModel.getProportionInvariant();
+			if (lower.length < logL.length) {
+				lower = Arrays.copyOf(lower, logL.length);
+				lowerScale = Arrays.copyOf(lowerScale, logL.length);
+			}
+
+			// lower partials
+			for (int n = 0; n < count; n++) {
+				Node node = postOrder[n];
+				int nr = node.getNr();
+				if (lower[nr] == null) {
+					lower[nr] = new double[size];
+					lowerScale[nr] = new double[patternCount];
+				}
+				if (node.isLeaf()) {
+					setTipPartial(node, lower[nr], lowerScale[nr]);
+				} else {
+					Arrays.fill(lower[nr], 1.0);
+					Arrays.fill(lowerScale[nr], 0.0);
+					for (Node child : node.getChildren()) {
+						transitionProbabilities(child, node.getHeight(), child.getHeight(), m1);
+						propagateUp(m1, lower[child.getNr()], tmp1);
+						multiply(lower[nr], tmp1);
+						add(lowerScale[nr], lowerScale[child.getNr()]);
+					}
+					normalise(lower[nr], lowerScale[nr]);
+				}
+			}
+			setTipPartial(newTaxon, x, xScale);
+
+			// new taxon as outgroup, joined to subtree at the root
+			double [] upper = pool.isEmpty() ? new double[size] : pool.pop();
+			double [] upperScale = scalePool.isEmpty() ? new double[patternCount] : scalePool.pop();
+			setFrequencies(upper, upperScale);
+			logL[subtree.getNr()] += placementLogL(upper, upperScale, subtree, rootHeight, rootHeight, newTaxon);
+
+			// upper partials, in pre-order so only partials of nodes on the stack are kept
+			Deque<Node> stack = new ArrayDeque<>();
+			Deque<double[]> uppers = new ArrayDeque<>(), upperScales = new ArrayDeque<>();
+			pushChildren(subtree, upper, upperScale, stack, uppers, upperScales);
+			pool.push(upper);
+			scalePool.push(upperScale);
+			while (!stack.isEmpty()) {
+				Node node = stack.pop();
+				upper = uppers.pop();
+				upperScale = upperScales.pop();
+				double parentHeight = node.getParent().getHeight();
+				double height = (parentHeight + node.getHeight()) / 2;
+				if (height < newTaxon.getHeight()) {
+					height = newTaxon.getHeight();
+				}
+				if (height > parentHeight) {
+					// new taxon is older than the top of this branch, as it is in positionOnBranch
+					logL[node.getNr()] = Double.NEGATIVE_INFINITY;
+				} else {
+					logL[node.getNr()] += placementLogL(upper, upperScale, node, parentHeight, height, newTaxon);
+				}
+				if (!node.isLeaf()) {
+					// move upper partial down the branch to node
+					transitionProbabilities(node, parentHeight, node.getHeight(), m1);
+					propagateDown(m1, upper, tmp1);
+					System.arraycopy(tmp1, 0, upper, 0, size);
+					pushChildren(node, upper, upperScale, stack, uppers, upperScales);
+				}
+				pool.push(upper);
+				scalePool.push(upperScale);
+			}
+		}
+
+		/** push children of node with their upper partials, which combine the partial at node from above
+		 * with the lower partials of the siblings **/
+		private void pushChildren(Node node, double [] upper, double [] upperScale,
+				Deque<Node> stack, Deque<double[]> uppers, Deque<double[]> upperScales) {
+			for (Node child : node.getChildren()) {
+				double [] childUpper = pool.isEmpty() ? new double[size] : pool.pop();
+				double [] childScale = scalePool.isEmpty() ? new double[patternCount] : scalePool.pop();
+				System.arraycopy(upper, 0, childUpper, 0, size);
+				System.arraycopy(upperScale, 0, childScale, 0, patternCount);
+				for (Node sibling : node.getChildren()) {
+					if (sibling != child) {
+						transitionProbabilities(sibling, node.getHeight(), sibling.getHeight(), m1);
+						propagateUp(m1, lower[sibling.getNr()], tmp1);
+						multiply(childUpper, tmp1);
+						add(childScale, lowerScale[sibling.getNr()]);
+					}
+				}
+				normalise(childUpper, childScale);
+				stack.push(child);
+				uppers.push(childUpper);
+				upperScales.push(childScale);
+			}
+		}
+
+		/** log likelihood of new taxon joined at height to branch from parentHeight down to node,
+		 * with upper the partial at the top of the branch **/
+		private double placementLogL(double [] upper, double [] upperScale, Node node, double parentHeight, double height, Node newTaxon) {
+			transitionProbabilities(node, height, node.getHeight(), m2);
+			propagateUp(m2, lower[node.getNr()], tmp1);
+			transitionProbabilities(newTaxon, height, newTaxon.getHeight(), m3);
+			propagateUp(m3, x, tmp2);
+			multiply(tmp1, tmp2);
+			if (parentHeight > height) {
+				transitionProbabilities(node, parentHeight, height, m1);
+				propagateUp(m1, tmp1, tmp2);
+			} else {
+				System.arraycopy(tmp1, 0, tmp2, 0, size);
+			}
+
+			double [] scale = lowerScale[node.getNr()];
+			double logL = 0;
+			for (int p = 0; p < patternCount; p++) {
+				double siteL = 0;
+				for (int c = 0; c < categoryCount; c++) {
+					int k = (c * patternCount + p) * stateCount;
+					double sum = 0;
+					for (int i = 0; i < stateCount; i++) {
+						sum += upper[k + i] * tmp2[k + i];
+					}
+					siteL += proportions[c] * sum;
+				}
+				double logSiteL = Math.log(siteL) + upperScale[p] + scale[p] + xScale[p];
+				if (proportionInvariant > 0) {
+					double constantL = 0;
+					for (int i = 0; i < stateCount; i++) {
+						if (isInvariant[p * stateCount + i]) {
+							constantL += frequencies[i];
+						}
+					}
+					if (constantL > 0) {
+						// add in log space, since unscaled site likelihoods can underflow
+						double logConstantL = Math.log(proportionInvariant * constantL);
+						double max = Math.max(logSiteL, logConstantL);
+						logSiteL = max + Math.log(Math.exp(logSiteL - max) + Math.exp(logConstantL - max));
+					}
+				}
+				logL += data.getPatternWeight(p) * logSiteL;
+			}
+			return logL;
+		}
+
+		private void transitionProbabilities(Node node, double startTime, double endTime, double [][] m) {
+			double branchRate = branchRateModel == null ? 1.0 : branchRateModel.getRateForBranch(node);
+			for (int c = 0; c < categoryCount; c++) {
+				substModel.getTransitionProbabilities(node, startTime, endTime, branchRate * categoryRates[c], m[c]);
+			}
+		}
+
+		private void setTipPartial(Node leaf, double [] partial, double [] scale) {
+			Arrays.fill(scale, 0.0);
+			int taxonIndex = data.getTaxonIndex(leaf.getID());
+			if (taxonIndex < 0) {
+				// no data for this taxon
+				Arrays.fill(partial, 1.0);
+				return;
+			}
+			Arrays.fill(partial, 0.0);
+			DataType dataType = data.getDataType();
+			for (int p = 0; p < patternCount; p++) {
+				int code = data.getPattern(taxonIndex, p);
+				if (!useAmbiguities && dataType.isAmbiguousCode(code)) {
+					for (int c = 0; c < categoryCount; c++) {
+						int k = (c * patternCount + p) * stateCount;
+						Arrays.fill(partial, k, k + stateCount, 1.0);
+					}
+					continue;
+				}
+				int [] states = dataType.getStatesForCode(code);
+				for (int c = 0; c < categoryCount; c++) {
+					int k = (c * patternCount + p) * stateCount;
+					for (int state : states) {
+						if (state < stateCount) {
+							partial[k + state] = 1.0;
+						}
+					}
+				}
+			}
+		}
+
+		private void setFrequencies(double [] partial, double [] scale) {
+			Arrays.fill(scale, 0.0);
+			for (int k = 0; k < size; k += stateCount) {
+				System.arraycopy(frequencies, 0, partial, k, stateCount);
+			}
+		}
+
+		/** out[i] = sum_j m[i][j] partial[j], from a node to the top of the branch above it **/
+		private void propagateUp(double [][] m, double [] partial, double [] out) {
+			for (int c = 0; c < categoryCount; c++) {
+				double [] mc = m[c];
+				for (int p = 0; p < patternCount; p++) {
+					int k = (c * patternCount + p) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						double sum = 0;
+						int w = i * stateCount;
+						for (int j = 0; j < stateCount; j++) {
+							sum += mc[w + j] * partial[k + j];
+						}
+						out[k + i] = sum;
+					}
+				}
+			}
+		}
+
+		/** out[j] = sum_i partial[i] m[i][j], from the top of a branch to the node below it **/
+		private void propagateDown(double [][] m, double [] partial, double [] out) {
+			for (int c = 0; c < categoryCount; c++) {
+				double [] mc = m[c];
+				for (int p = 0; p < patternCount; p++) {
+					int k = (c * patternCount + p) * stateCount;
+					for (int j = 0; j < stateCount; j++) {
+						double sum = 0;
+						for (int i = 0; i < stateCount; i++) {
+							sum += partial[k + i] * mc[i * stateCount + j];
+						}
+						out[k + j] = sum;
+					}
+				}
+			}
+		}
+
+		private void multiply(double [] partial, double [] other) {
+			for (int i = 0; i < size; i++) {
+				partial[i] *= other[i];
+			}
+		}
+
+		private void add(double [] scale, double [] other) {
+			for (int p = 0; p < patternCount; p++) {
+				scale[p] += other[p];
+			}
+		}
+
+		/** scale partials of every pattern so the largest is 1, keeping track of the log of the scale factor **/
+		private void normalise(double [] partial, double [] scale) {
+			for (int p = 0; p < patternCount; p++) {
+				double max = 0;
+				for (int c = 0; c < categoryCount; c++) {
+					int k = (c * patternCount + p) * stateCount;
+					for (int i = 0; i < stateCount; i++) {
+						max = Math.max(max, partial[k + i]);
+					}
+				}
+				if (max > 0) {
+					for (int c = 0; c < categoryCount; c++) {
+						int k = (c * patternCount + p) * stateCount;
+						for (int i = 0; i < stateCount; i++) {
+							partial[k + i] /= max;
+						}
+					}
+					scale[p] += Math.log(max);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package online.treeexpander;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import beast.base.core.Description;
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.parser.XMLParserException;
+import online.Model;
+
+@Description("Tree Expander that adds new taxa by beam search of posterior fit starting from the root. "
+		+ "Instead of following only the better of two branches down the tree, the best beamWidth "
+		+ "branches at every level are followed.")
+public class BeamSearchExpander extends BinarySearchExpander {
+	private int beamWidth;
+
+	/**
+	 * @param beamWidth number of branches followed down the tree at every level
+	 * @param threads number of candidate branches scored concurrently
+	 */
+	public BeamSearchExpander(int beamWidth, int threads) {
+		super(threads);
+		if (beamWidth < 1) {
+			throw new IllegalArgumentException("beam width should be at least 1, not " + beamWidth);
+		}
+		this.beamWidth = beamWidth;
+	}
+
+	/** beam search always starts at the root, so does not use a placement cache **/
+	@Override
+	public void setPlacementCache(PlacementCache placementCache) {
+		throw new IllegalArgumentException("Placement cache is not supported by beam search");
+	}
+
+	/**
+	 * The beam starts with the new taxon as outgroup. At every level, the branches below those in
+	 * the beam are scored, and the best beamWidth of them that score at least as well as the worst
+	 * branch in the beam form the next beam. The search stops when no branch qualifies, and the
+	 * new taxon is placed on the best branch seen.
+	 */
+	@Override
+	protected void positionAdditions(Model model2, String taxon) throws IOException, SAXException, ParserConfigurationException, XMLParserException {
+		State state = model2.state;
+		Distribution posterior = getPlacementDistribution(model2);
+		double logP = calcOutgroupLogP(model2, posterior);
+
+		Node newTaxon = model2.tree.getNode(map.get(taxon));
+		Node root = model2.tree.getRoot();
+		double rootHeight = root.getHeight();
+		internalNode = root;
+		Node start = root.getLeft() == newTaxon ? root.getRight() : root.getLeft();
+
+		// start is not a branch candidates are compared with, and positioning
+		// the new taxon may swap it with the root, so it is represented by null
+		Node best = null;
+		double bestLogP = logP;
+		List<Node> beam = new ArrayList<>();
+		List<Double> beamLogP = new ArrayList<>();
+		beam.add(start);
+		beamLogP.add(logP);
+		while (beam.size() > 0) {
+			double threshold = Double.POSITIVE_INFINITY;
+			for (double d : beamLogP) {
+				threshold = Math.min(threshold, d);
+			}
+			List<Node> candidates = new ArrayList<>();
+			for (Node node : beam) {
+				for (Node child : node.getChildren()) {
+					if (child == newTaxon.getParent()) {
+						// skip the node carrying the new taxon
+						child = child.getLeft() == newTaxon ? child.getRight() : child.getLeft();
+					}
+					candidates.add(child);
+				}
+			}
+			double [] logPs = scoreBranches(newTaxon, candidates, model2, state, posterior);
+
+			// best beamWidth candidates that do not score worse than the beam form the next beam
+			beam.clear();
+			beamLogP.clear();
+			boolean [] used = new boolean[candidates.size()];
+			for (int k = 0; k < beamWidth; k++) {
+				int next = -1;
+				for (int i = 0; i < candidates.size(); i++) {
+					if (!used[i] && logPs[i] >= threshold && (next < 0 || logPs[i] > logPs[next])) {
+						next = i;
+					}
+				}
+				if (next < 0) {
+					break;
+				}
+				used[next] = true;
+				Node node = candidates.get(next);
+				if (logPs[next] > bestLogP) {
+					best = node;
+					bestLogP = logPs[next];
+				}
+				if (!node.isLeaf() && node.getHeight() > newTaxon.getHeight()) {
+					beam.add(node);
+					beamLogP.add(logPs[next]);
+				}
+			}
+		}
+
+		Log.debug("[" + bestLogP + "] " + taxon + " placed " + (best == null ? "as outgroup" : "above node " + best.getNr()));
+		if (best == null) {
+			restoreOutgroup(newTaxon, model2.tree, rootHeight);
+		} else if (best.getParent() != newTaxon.getParent()) {
+			positionOnBranch(newTaxon, best, model2.tree);
+		}
+	}
+}
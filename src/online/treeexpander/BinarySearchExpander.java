@@ -2,9 +2,14 @@ package online.treeexpander;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -20,26 +25,100 @@ import beast.base.inference.parameter.Parameter;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.inference.CompoundDistribution;
 import beast.base.core.Log;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.TraitSet;
 import beast.base.evolution.tree.Tree;
 import beast.base.parser.XMLParserException;
+import online.GraphCopier;
 import online.Model;
+import online.Util;
 
 @Description("Tree Expander that adds new taxa in by binary search of "
 		+ "posterior fit starting from the root.")
 public class BinarySearchExpander implements TreeExpander {
-	private Map<String, Integer> map;
-	private Node internalNode;
+	protected Map<String, Integer> map;
+	protected Node internalNode;
 	
 	private boolean useLikelihoodNotPosterior;
+	/** reusable buffers for changing the tree **/
+	protected final TreeSurgery surgery = new TreeSurgery();
+	/** clock model parameter values per node of the tree of model2 **/
+	private final NodeValues nodeValues = new NodeValues();
+	/** number of the next internal node added to the tree **/
+	private int nextInternalNr;
+	/** true till the first calculation after the tree of model2 was initialised, after which
+	 * calculations only update the parts of the tree that changed **/
+	private boolean needsFullRecalculation = true;
+
+	/** number of candidate branches scored concurrently, 1 for sequential search **/
+	private int threads = 1;
+	/** copies of model2 used to score candidate branches, one per candidate **/
+	private Evaluator [] evaluators = null;
+	private Model evaluatorModel = null;
+	/** the shared pool while this expander uses it, null otherwise **/
+	private ExecutorService exec = null;
+	/** one pool for the evaluators of all expanders, so the number of scoring threads does not grow 
+	 * with the number of TraceExpander workers. Guarded by BinarySearchExpander.class **/
+	private static ExecutorService sharedExec = null;
+	private static int sharedExecUsers = 0;
+
+	/** number of nearest leaves used to select a clade to start the search in, 0 for starting at the root **/
+	private int neighbourCount = 0;
+	/** sequences of alignments of tree likelihoods of distanceModel **/
+	private List<SequenceDistance> distances = null;
+	private Model distanceModel = null;
+	/** buffers of getNearestClade, reused for every new taxon **/
+	private Node [] leaves = new Node[0], ancestors = new Node[0];
+	private double [] leafDistances = new double[0];
+	/** position among ancestors of the nearest leaf by node number, -1 for other nodes **/
+	private int [] ancestorIndex = new int[0];
+	/** where taxa were placed in earlier samples, possibly shared with other expanders **/
+	private PlacementCache placementCache = null;
+
+	public BinarySearchExpander() {
+	}
+
+	/**
+	 * @param threads number of candidate branches scored concurrently. With 2 threads both branches 
+	 * below a node are scored at the same time, with 6 or more the branches below those are scored as 
+	 * well, so the search looks further ahead. With 1 thread candidates are scored one after another.
+	 */
+	public BinarySearchExpander(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param threads number of candidate branches scored concurrently
+	 * @param neighbourCount number of leaves nearest to a new taxon by p-distance, used to restrict the search 
+	 * for a branch to the smallest clade containing them. Ignored if 0.
+	 */
+	public BinarySearchExpander(int threads, int neighbourCount) {
+		this.threads = threads;
+		this.neighbourCount = neighbourCount;
+	}
+
+	/** remember where taxa are placed in cache, and start placement in later samples there **/
+	public void setPlacementCache(PlacementCache placementCache) {
+		this.placementCache = placementCache;
+	}
 
-	
 	@Override
 	public void expandTree(Model model1, Model model2, List<String> additions, boolean useLikelihoodNotPosterior) {
 		this.useLikelihoodNotPosterior = useLikelihoodNotPosterior;
 		int leafNodeCount = model2.tree.getLeafNodeCount();
+		if (threads > 1 && (evaluators == null || evaluatorModel != model2)) {
+			// copy while the tree of model2 still contains all nodes
+			createEvaluators(model2);
+		}
 		initialiseTree(model1, model2);
+		nodeValues.load(model2.parameters);
+		if (additions.size() > 0) {
+			// number nodes once for the whole batch, taxa added below take the next free internal node number
+			nextInternalNr = renumber(model2, leafNodeCount);
+			reserveTopNumberForRoot(model2);
+		}
+		needsFullRecalculation = true;
 		
 		Log.info.print("Adding " + additions.size() + " taxa:");
 		int k = 0;
@@ -59,9 +138,42 @@ public class BinarySearchExpander implements TreeExpander {
 				Log.info.print(".");
 			}
 		}
+		if (additions.size() > 0) {
+			// back to internal nodes numbered in post-order with the root last
+			renumber(model2, leafNodeCount);
+		}
 		Log.info.println("Done");
 		
 	}
+
+	/** give the root the number it gets when the batch is done, which is the highest one. The root keeps its 
+	 * number while taxa are added, so otherwise the last node added would get the highest number, and
+	 * its clock model values would fall outside per-branch parameters, which have no value for the root. **/
+	private void reserveTopNumberForRoot(Model model2) {
+		Node [] nodes = model2.tree.getNodesAsArray();
+		Node root = model2.tree.getRoot();
+		int rootNr = root.getNr();
+		int top = nodes.length - 1;
+		if (rootNr == top) {
+			return;
+		}
+		nodeValues.startRenumbering();
+		root.setNr(top);
+		nodes[top] = root;
+		nodeValues.renumbered(rootNr, top);
+		nodeValues.store();
+		// the first taxon added takes the number the root had
+		nextInternalNr = rootNr;
+	}
+
+	/** renumber all nodes of tree in model2, moving clock model values of nodes that get a new number along **/
+	private int renumber(Model model2, int leafNodeCount) {
+		nodeValues.startRenumbering();
+		int nextNr = surgery.renumber(model2.tree.getRoot(), model2.tree.getNodesAsArray(), map, leafNodeCount,
+				nodeValues::renumbered);
+		nodeValues.store();
+		return nextNr;
+	}
 	
 	public void initialiseTree(Model model1, Model model2) {
 		Tree tree2 = model2.tree;
@@ -88,18 +200,12 @@ public class BinarySearchExpander implements TreeExpander {
         	Node node = otherTree.getNode(0);
         	double delta = Math.abs(trait.getDate(trait.getValue(node.getID())) - trait.getDate(node.getHeight()));
         	if (delta > 0) {
-        		shiftNodes(tree2.getRoot(), delta);
+        		surgery.shiftHeights(tree2.getRoot(), delta);
         	}
         }
         root.setParent(null);
     }
 
-	private void shiftNodes(Node node, double delta) {
-		node.setHeight(node.getHeight() + delta);
-		for (Node child : node.getChildren()) {
-			shiftNodes(child, delta);
-		}
-	}
 	
 	
 	/** returns false if new taxon is older than root, so should not be propagated down the tree **/
@@ -133,161 +239,262 @@ public class BinarySearchExpander implements TreeExpander {
 			newTaxonIsYoungerThanRoot = false;
 		}
 		newRoot.setHeight(h);
-		setRoot(model2.tree, newRoot);
+		// only the new nodes need a number, so existing nodes and their meta data stay where they are
+		Node [] nodes = tree2.getNodesAsArray();
+		nodes[child.getNr()] = child;
+		newRoot.setNr(nextInternalNr);
+		nodes[nextInternalNr] = newRoot;
+		nextInternalNr++;
+		surgery.setRoot(model2.tree, newRoot);
+		tree2.startEditing(null);
+		markFilthy(tree2.getRoot());
+		markFilthy(newRoot);
+		
+		// set clock model values for child and newRoot, which the placement search scores with
+		nodeValues.setDefault(child.getNr());
+		nodeValues.setDefault(newRoot.getNr());
+		nodeValues.setDefault(newRoot.getLeft().getNr());
+		nodeValues.setDefault(newRoot.getRight().getNr());
+		nodeValues.store();
 
-		for (int i = 0; i < model1.parameters.size(); i++) {
-			((StateNode)model1.parameters.get(i)).assignFrom((StateNode)model2.parameters.get(i));
+		return newTaxonIsYoungerThanRoot;
+	} // addTaxon
+
+	protected void positionAdditions(Model model2, String taxon) throws IOException, SAXException, ParserConfigurationException, XMLParserException {
+		// adding a single taxon
+		State state = model2.state;
+		Distribution posterior = getPlacementDistribution(model2);
+		double logP = calcOutgroupLogP(model2, posterior);
+
+		// move node that attaches halfway left and right
+		int nodeNr = map.get(taxon);
+		Node newTaxon = model2.tree.getNode(nodeNr);
+		Node root = model2.tree.getRoot();
+		internalNode = root;
+		// Node newTaxon = model2.tree.getNode(model2.tree.getLeafNodeCount());
+		Node start = root.getLeft() == newTaxon ? root.getRight() : root.getLeft();
+		
+		// skip the part of the search above the clade the taxon was placed next to in 
+		// earlier samples, or else above the clade of the nearest neighbours
+		Node clade = null;
+		if (placementCache != null) {
+			clade = placementCache.getClade(taxon, start, map);
+		}
+		if (clade == null && neighbourCount > 0) {
+			clade = getNearestClade(model2, newTaxon, start);
+		}
+		boolean done = false;
+		if (clade != null && clade != start) {
+			double rootHeight = root.getHeight();
+			double logPclade = tryBranch(newTaxon, clade, state, posterior, model2.tree);
+			if (logPclade >= logP) {
+				start = clade;
+				logP = logPclade;
+				done = clade.isLeaf() || clade.getHeight() <= newTaxon.getHeight();
+			} else {
+				// the clade fits worse than the new taxon as outgroup, so search the whole tree
+				restoreOutgroup(newTaxon, model2.tree, rootHeight);
+			}
 		}
 		
-		// renumber nodes and update clock model parameters
-		renumberInternal(tree2.getRoot(), tree2.getNodesAsArray(), map, new int[]{leafNodeCount}, model1.parameters, model2.parameters);
+		if (done) {
+			// nothing left to search below the clade
+		} else if (evaluators != null) {
+			tryCandidates(newTaxon, start, model2, logP);
+		} else {
+			tryLeftRight(newTaxon, start, state, posterior, model2.tree, logP);
+		}
 		
-		// set meta data for child and newRoot
-		setupMetaData(child.getNr(), model2.parameters);
-		setupMetaData(newRoot.getNr(), model2.parameters);
-		setupMetaData(newRoot.getLeft().getNr(), model2.parameters);
-		setupMetaData(newRoot.getRight().getNr(), model2.parameters);
+		if (placementCache != null) {
+			Node parent = newTaxon.getParent();
+			placementCache.add(taxon, parent.getLeft() == newTaxon ? parent.getRight() : parent.getLeft(), map);
+		}
+	} // addAdditions
 
-		return newTaxonIsYoungerThanRoot;
-	} // addTaxon
+	/** distribution used to score placements: the posterior, or the likelihood if useLikelihoodNotPosterior is set **/
+	protected Distribution getPlacementDistribution(Model model2) {
+		Distribution posterior = model2.posterior;
+		if (useLikelihoodNotPosterior) {
+			posterior = ((CompoundDistribution) posterior).pDistributions.get().get(1);
+		}
+		return posterior;
+	}
 
-	private void setupMetaData(int i, List<Parameter<?>> metaData) {
-		for (int k = 0; k < metaData.size(); k++) {
-			Parameter<?> p = metaData.get(k);
-			if (i < p.getDimension()) {
-				if (p instanceof RealParameter) {
-					// TODO: robustify this 
-					((RealParameter) p).setValue(i, 1.0);
-				} else if (p instanceof BooleanParameter) {
-					// TODO: robustify this?
-					((BooleanParameter) p).setValue(i, false);
+	/** calculate logP from scratch with the new taxon as outgroup, as it is just after addTaxon **/
+	protected double calcOutgroupLogP(Model model2, Distribution posterior) {
+		State state = model2.state;
+		if (needsFullRecalculation) {
+			// nodes were renumbered, or the state was changed from outside
+	        state.setEverythingDirty(true);
+		}
+		// otherwise, only nodes marked by addTaxon and those changed while placing the previous taxon are recalculated
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+    	double logP = posterior.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		if (Log.getLevel().ordinal() >= Log.Level.debug.ordinal()) {
+			// avoid building the newick string when it is not printed
+			Log.debug("[" + logP + "] " + model2.tree.getRoot().toNewick());
+		}
+		if (evaluators != null) {
+			// parameters may have changed when the taxon was added
+			for (Evaluator evaluator : evaluators) {
+				if (needsFullRecalculation) {
+					evaluator.needsFullUpdate = true;
 				} else {
-					// TODO: robustify this? 
-					IntegerParameter ip = (IntegerParameter) p;
-					ip.setValue(i, (ip.getUpper() - ip.getLower())/2);
+					evaluator.needsParameterUpdate = true;
 				}
 			}
 		}
+		needsFullRecalculation = false;
+		return logP;
 	}
-	
-	/** changes root of tree in such a way that the original root
-	 * node remains root node, swapping nodes if required
-	 */
-	protected void setRoot(Tree tree, Node newRoot) {
-		if (tree.getRoot() == newRoot) {
+
+	/** move new taxon back to the root, with the root at rootHeight. Positioning the new taxon on
+	 * a branch swaps the root with the node below it, so the old subtree root is not used here **/
+	protected void restoreOutgroup(Node newTaxon, Tree tree, double rootHeight) {
+		if (newTaxon.getParent().isRoot()) {
 			return;
 		}
-		// swap root nodes
-		Node oldRoot = tree.getRoot();
-		List<Node> children = new ArrayList<>();
-		children.addAll(oldRoot.getChildren());
-
-		List<Node> children2 = new ArrayList<>();
-		children2.addAll(newRoot.getChildren());
-		Node parent = oldRoot.getParent();		
-		
-		oldRoot.removeAllChildren(false);
-		parent.removeChild(oldRoot);
-		newRoot.removeAllChildren(false);
+		positionOnBranch(newTaxon, tree.getRoot(), tree);
+		newTaxon.getParent().setHeight(rootHeight);
+		internalNode = tree.getRoot();
+	}
 
-		for (Node child : children) {
-			if (child != newRoot) { 
-				newRoot.addChild(child);
-			} else {
-				throw new IllegalArgumentException("Don't know how to handle this");
+	/** log posterior (or likelihood) of placing newTaxon on the branch above each of the candidates. 
+	 * Without evaluators the tree is changed, and the new taxon is left on one of the candidate branches. **/
+	protected double [] scoreBranches(Node newTaxon, List<Node> candidates, Model model2, State state, Distribution posterior) {
+		double [] logPs = new double[candidates.size()];
+		List<Node> valid = new ArrayList<>();
+		for (Node node : candidates) {
+			if (canPlace(newTaxon, node)) {
+				valid.add(node);
 			}
 		}
-		if (parent != newRoot) {
-			parent.addChild(newRoot);
+		double [] validLogPs;
+		if (evaluators != null) {
+			validLogPs = score(newTaxon, valid, model2);
+		} else {
+			validLogPs = new double[valid.size()];
+			for (int i = 0; i < valid.size(); i++) {
+				validLogPs[i] = tryBranch(newTaxon, valid.get(i), state, posterior, model2.tree);
+			}
 		}
-		for (Node child : children2) {
-			if (child != oldRoot) { 
-				oldRoot.addChild(child);
+		for (int i = 0, j = 0; i < candidates.size(); i++) {
+			if (j < valid.size() && candidates.get(i) == valid.get(j)) {
+				logPs[i] = validLogPs[j++];
 			} else {
-				oldRoot.addChild(newRoot);
+				logPs[i] = Double.NEGATIVE_INFINITY;
 			}
 		}
-		oldRoot.setParent(null);
-		
-		double tmp = newRoot.getHeight();
-		newRoot.setHeight(oldRoot.getHeight());
-		oldRoot.setHeight(tmp);
+		return logPs;
 	}
 
-	protected int renumberInternal(Node node, Node [] nodes, Map<String, Integer> map, int[] nr,
-			List<Parameter<?>> originalMetaData, List<Parameter<?>> metaData) {
-		for (Node child : node.getChildren()) {
-			renumberInternal(child, nodes, map, nr, originalMetaData, metaData);
+	/** false if new taxon is older than the top of the branch above node, in which case positionOnBranch fails **/
+	protected boolean canPlace(Node newTaxon, Node node) {
+		Node parent = node.getParent();
+		if (parent != null && parent == newTaxon.getParent()) {
+			// new taxon is currently on this branch
+			parent = parent.getParent();
 		}
-		if (!node.isLeaf()) {
-			int i = node.getNr();
-			int j = nr[0];
-			updateMetaData(i, j, originalMetaData, metaData);
-			
-			// update node number
-			node.setNr(nr[0]);
-			nr[0]++;			
-		} else { // node is leaf
-			int i = node.getNr();
-			if (node.getID() == null || map == null || map.get(node.getID()) == null) {
-				Log.warning("WARNING: programmer error -- Taxon found " + node.getID() + " that should have been removed");
-				Log.warning("WARNING: Expect a crash.");
-			}
-			if (i != map.get(node.getID())) {
-				Log.debug(node.getID() + " " + i +" => " + map.get(node.getID()));
-				node.setNr(map.get(node.getID()));
-				int j = map.get(node.getID());
-				updateMetaData(i, j, originalMetaData, metaData);
-			}
-		}
-		nodes[node.getNr()] = node;
-		return nr[0];
+		return parent == null || newTaxon.getHeight() <= parent.getHeight();
 	}
 
-	private void updateMetaData(int i, int j, List<Parameter<?>> originalMetaData, List<Parameter<?>> metaData) {
-		if (i != j) {
-			for (int k = 0; k < metaData.size(); k++) {
-				Parameter<?> p = metaData.get(k);
-				if (j < p.getDimension()) {
-					Parameter<?> p0 = originalMetaData.get(k);
-					if (p instanceof RealParameter) {
-						((RealParameter) p).setValue(j, (Double)(p0.getValue(i)));
-					} else if (p instanceof BooleanParameter) {
-						((BooleanParameter) p).setValue(i, (Boolean)(p0.getValue(i)));
-					} else {
-						((IntegerParameter) p).setValue(j, (Integer)(p0.getValue(i)));
-					}
-				}
+	/** smallest clade in subtree containing the neighbourCount leaves nearest to newTaxon by p-distance **/
+	private Node getNearestClade(Model model2, Node newTaxon, Node subtree) {
+		if (distanceModel != model2) {
+			distances = new ArrayList<>();
+			List<GenericTreeLikelihood> likelihoods = new ArrayList<>();
+			collectTreeLikelihoods(model2.posterior, model2.tree, likelihoods);
+			for (GenericTreeLikelihood likelihood : likelihoods) {
+				distances.add(new SequenceDistance(likelihood.dataInput.get()));
 			}
-		}		
-	}
-	
-	private void positionAdditions(Model model2, String taxon) throws IOException, SAXException, ParserConfigurationException, XMLParserException {
-		// adding a single taxon
-		State state = model2.state;
-		Distribution posterior = model2.posterior;
-		if (useLikelihoodNotPosterior) {
-			posterior = ((CompoundDistribution) posterior).pDistributions.get().get(1);
+			distanceModel = model2;
+		}
+
+		int count = surgery.postOrder(subtree);
+		Node [] nodes = surgery.getOrder();
+		if (leaves.length < count) {
+			leaves = new Node[count];
+			leafDistances = new double[count];
+			ancestors = new Node[count];
+		}
+		int leafCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (nodes[i].isLeaf()) {
+				leaves[leafCount++] = nodes[i];
+			}
+		}
+		double [] distance = leafDistances;
+		double [] counts = new double[2];
+		for (int i = 0; i < leafCount; i++) {
+			counts[0] = 0;
+			counts[1] = 0;
+			for (SequenceDistance d : distances) {
+				d.count(newTaxon.getID(), leaves[i].getID(), counts);
+			}
+			distance[i] = counts[1] > 0 ? counts[0] / counts[1] : Double.POSITIVE_INFINITY;
 		}
 		
-		// calc logP when new taxon is outgroup
-        state.setEverythingDirty(true);
-        state.storeCalculationNodes();
-        state.checkCalculationNodesDirtiness();
-    	double logP = posterior.calculateLogP();
-		state.acceptCalculationNodes();
-Log.debug("[" + logP + "] " + model2.tree.getRoot().toNewick());		
+		// ancestors of the nearest leaf, and how far up the other nearest leaves join them
+		int nearest = 0;
+		for (int i = 1; i < leafCount; i++) {
+			if (distance[i] < distance[nearest]) {
+				nearest = i;
+			}
+		}
+		if (leafCount == 0 || distance[nearest] == Double.POSITIVE_INFINITY) {
+			// no sequence data to compare with, so search from the top of subtree
+			return null;
+		}
+		distance[nearest] = Double.NaN;
+		if (ancestorIndex.length < model2.tree.getNodeCount()) {
+			ancestorIndex = new int[model2.tree.getNodeCount()];
+			Arrays.fill(ancestorIndex, -1);
+		}
+		int ancestorCount = 0;
+		for (Node node = leaves[nearest]; node != subtree.getParent(); node = node.getParent()) {
+			ancestorIndex[node.getNr()] = ancestorCount;
+			ancestors[ancestorCount++] = node;
+		}
+		int mrca = 0;
+		for (int k = 1; k < neighbourCount && k < leafCount; k++) {
+			int next = -1;
+			for (int i = 0; i < leafCount; i++) {
+				if (!Double.isNaN(distance[i]) && (next < 0 || distance[i] < distance[next])) {
+					next = i;
+				}
+			}
+			if (distance[next] == Double.POSITIVE_INFINITY) {
+				// remaining leaves have no sequence data to compare with
+				break;
+			}
+			distance[next] = Double.NaN;
+			Node node = leaves[next];
+			while (ancestorIndex[node.getNr()] < 0) {
+				node = node.getParent();
+			}
+			mrca = Math.max(mrca, ancestorIndex[node.getNr()]);
+		}
+		for (int i = 0; i < ancestorCount; i++) {
+			ancestorIndex[ancestors[i].getNr()] = -1;
+		}
+		return ancestors[mrca];
+	}
 
-		// move node that attaches halfway left and right
-		int nodeNr = map.get(taxon);
-		Node newTaxon = model2.tree.getNode(nodeNr);
-		Node root = model2.tree.getRoot();
-		internalNode = root;
-		// Node newTaxon = model2.tree.getNode(model2.tree.getLeafNodeCount());
-		tryLeftRight(newTaxon,
-				root.getLeft() == newTaxon ? root.getRight() : root.getLeft(),
-				state, posterior, model2.tree, logP);
-	} // addAdditions
+	/** tree likelihoods on tree in distribution, which may be a compound distribution **/
+	protected static void collectTreeLikelihoods(Distribution distribution, Tree tree, List<GenericTreeLikelihood> likelihoods) {
+		if (distribution instanceof CompoundDistribution) {
+			for (Distribution d : ((CompoundDistribution) distribution).pDistributions.get()) {
+				collectTreeLikelihoods(d, tree, likelihoods);
+			}
+		} else if (distribution instanceof GenericTreeLikelihood) {
+			if (((GenericTreeLikelihood) distribution).treeInput.get() == tree) {
+				likelihoods.add((GenericTreeLikelihood) distribution);
+			}
+		}
+	}
 	
 
 	protected void tryLeftRight(Node newTaxon, Node child, State state, Distribution posterior, Tree tree, double logP) {
@@ -330,7 +537,11 @@ Log.debug("[" + logP + "] " + model2.tree.getRoot().toNewick());
 	    state.checkCalculationNodesDirtiness();
 		double logP = posterior.calculateLogP();
 		state.acceptCalculationNodes();
-	Log.debug("[" + logP + "] " + tree.getRoot().toNewick());		
+		// like MCMC does after every step, so the next candidate only recalculates the nodes it changes
+		state.setEverythingDirty(false);
+		if (Log.getLevel().ordinal() >= Log.Level.debug.ordinal()) {
+			Log.debug("[" + logP + "] " + tree.getRoot().toNewick());
+		}
 		return logP;
 	}
 	
@@ -340,7 +551,31 @@ Log.debug("[" + logP + "] " + model2.tree.getRoot().toNewick());
 	 * @param tree
 	 * @return if node could successfully be placed on branch
 	 */
-	private boolean positionOnBranch(Node newTaxon, Node node, Tree tree) {
+	protected boolean positionOnBranch(Node newTaxon, Node node, Tree tree) {
+		// height halfway along the branch, checked before anything changes
+		Node parent = node.getParent();
+		if (parent == internalNode) {
+			// node is the sibling of the new taxon, whose branch extends up to the parent of internalNode
+			parent = internalNode.getParent();
+		}
+		double newHeight = 0;
+		if (parent != null) {
+			newHeight = (parent.getHeight() + node.getHeight())/2;
+			if (newHeight < newTaxon.getHeight()) {
+				newHeight = newTaxon.getHeight();
+				if (newHeight > parent.getHeight()) {
+					return false;
+				}
+			}
+		}
+		
+		// nodes that get another parent or other children, the likelihood only needs updating along their paths to the root
+		tree.startEditing(null);
+		markFilthy(internalNode);
+		markFilthy(internalNode.getParent());
+		markFilthy(node);
+		markFilthy(node.getParent());
+
 		// remove attachments of internalNode
 		Node newRoot = null;
 		if (internalNode.isRoot()) {
@@ -356,28 +591,317 @@ Log.debug("[" + logP + "] " + model2.tree.getRoot().toNewick());
 		internalNode.removeChild(internalNode.getLeft() == newTaxon ? internalNode.getRight() : internalNode.getLeft());
 		
 		// add internalNode above node, halfway along the branch
-		Node parent = node.getParent();
-		if (parent == null) {
+		if (node.getParent() == null) {
 			newRoot = internalNode;
-			// setRoot(tree, internalNode);
+			internalNode.addChild(node);
 		} else {
-			parent.removeChild(node);
-			parent.addChild(internalNode);
-			
-			double newHeight = (parent.getHeight() + node.getHeight())/2;
-			if (newHeight < newTaxon.getHeight()) {
-				newHeight = newTaxon.getHeight();
-				if (newHeight > parent.getHeight()) {
-					return false;
-				}
-			}
+			surgery.graft(internalNode, node);
 			internalNode.setHeight(newHeight);		
 		}
-		internalNode.addChild(node);
 		if (newRoot != null) {
-			setRoot(tree, newRoot);
+			markFilthy(tree.getRoot());
+			markFilthy(newRoot);
+			surgery.setRoot(tree, newRoot);
+			markFilthy(tree.getRoot());
+			markFilthy(newRoot);
 			internalNode = newRoot;
 		}
+		markFilthy(internalNode);
 		return true;
 	}
+
+	/** mark node and its children as changed, so their partials and branches are recalculated **/
+	private void markFilthy(Node node) {
+		if (node == null) {
+			return;
+		}
+		node.makeDirty(Tree.IS_FILTHY);
+		for (Node child : node.getChildren()) {
+			child.makeDirty(Tree.IS_FILTHY);
+		}
+	}
+
+	/** 
+	 * Concurrent version of tryLeftRight: branches below child are scored on evaluators at the 
+	 * same time, while the tree of model2 is left untouched. Only the best branch is applied to 
+	 * the tree, and the search continues below it if it improves on logP. 
+	 */
+	private void tryCandidates(Node newTaxon, Node child, Model model2, double logP) {
+		List<Node> candidates = getCandidates(child);
+		double [] logPs = score(newTaxon, candidates, model2);
+		int best = 0;
+		for (int i = 1; i < logPs.length; i++) {
+			if (logPs[i] > logPs[best]) {
+				best = i;
+			}
+		}
+		if (logPs[best] < logP) {
+			// new taxon stays above child
+			return;
+		}
+		Node node = candidates.get(best);
+		positionOnBranch(newTaxon, node, model2.tree);
+		if (!node.isLeaf() && node.getHeight() > newTaxon.getHeight()) {
+			tryCandidates(newTaxon, node, model2, logPs[best]);
+		}
+	}
+
+	/** branches below child, level by level as long as a complete level fits in the number of evaluators **/
+	private List<Node> getCandidates(Node child) {
+		List<Node> candidates = new ArrayList<>();
+		List<Node> level = new ArrayList<>();
+		level.add(child);
+		while (true) {
+			List<Node> next = new ArrayList<>();
+			for (Node node : level) {
+				next.addAll(node.getChildren());
+			}
+			if (next.size() == 0 || (candidates.size() > 0 && candidates.size() + next.size() > evaluators.length)) {
+				return candidates;
+			}
+			candidates.addAll(next);
+			level = next;
+		}
+	}
+
+	/** score candidates on evaluators, as many at a time as there are evaluators **/
+	private double [] score(Node newTaxon, List<Node> candidates, Model model2) {
+		int internalNodeNr = internalNode.getNr();
+		int newTaxonNr = newTaxon.getNr();
+		double [] logPs = new double[candidates.size()];
+		for (int start = 0; start < candidates.size(); start += evaluators.length) {
+			int end = Math.min(start + evaluators.length, candidates.size());
+			List<Future<Double>> futures = new ArrayList<>();
+			for (int i = start + 1; i < end; i++) {
+				final Evaluator evaluator = evaluators[i - start];
+				final int nodeNr = candidates.get(i).getNr();
+				futures.add(exec.submit(() -> evaluator.score(model2, internalNodeNr, newTaxonNr, nodeNr, useLikelihoodNotPosterior)));
+			}
+			logPs[start] = evaluators[0].score(model2, internalNodeNr, newTaxonNr, candidates.get(start).getNr(), useLikelihoodNotPosterior);
+			try {
+				for (int i = start + 1; i < end; i++) {
+					logPs[i] = futures.get(i - start - 1).get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return logPs;
+	}
+
+	private void createEvaluators(Model model2) {
+		evaluators = new Evaluator[threads];
+		for (int i = 0; i < threads; i++) {
+			evaluators[i] = new Evaluator(model2);
+			if (evaluators[i].tree == null) {
+				Log.warning("Could not copy tree of " + model2.tree.getID() + ": scoring candidate branches sequentially");
+				evaluators = null;
+				return;
+			}
+		}
+		evaluatorModel = model2;
+		if (exec == null) {
+			exec = acquireExecutor();
+		}
+	}
+
+	/** drop the evaluators and stop using the thread pool, which is shut down once no expander uses it.
+	 * The expander can still be used afterwards, and creates new evaluators when needed **/
+	public void close() {
+		evaluators = null;
+		evaluatorModel = null;
+		if (exec != null) {
+			releaseExecutor();
+			exec = null;
+		}
+	}
+
+	/** pool with one thread per processor, shared by all expanders **/
+	private static synchronized ExecutorService acquireExecutor() {
+		if (sharedExec == null) {
+			sharedExec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread thread = new Thread(r, "placement evaluator");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		sharedExecUsers++;
+		return sharedExec;
+	}
+
+	private static synchronized void releaseExecutor() {
+		sharedExecUsers--;
+		if (sharedExecUsers == 0) {
+			sharedExec.shutdown();
+			sharedExec = null;
+		}
+	}
+
+	/** 
+	 * Copy of the state and posterior of a model for scoring a candidate branch. Data such as 
+	 * alignments is shared with the model, while state nodes and calculation nodes, with their 
+	 * caches and likelihood buffers, are the copy's own. Before scoring, the tree of the copy is made equal to that of the model,
+	 * marking only nodes that changed as dirty, so the likelihood is updated incrementally.
+	 */
+	private static class Evaluator {
+		final BinarySearchExpander placer = new BinarySearchExpander();
+		State state;
+		Distribution posterior;
+		Distribution likelihood;
+		/** distribution used for the last score **/
+		boolean usedLikelihood = false;
+		Tree tree;
+		boolean needsFullUpdate = true;
+		boolean needsParameterUpdate = false;
+
+		Evaluator(Model model) {
+			GraphCopier copier = new GraphCopier();
+			synchronized (GraphCopier.class) {
+				state = copier.copy(model.state);
+				posterior = copier.copy(model.posterior);
+			}
+			state.initialise();
+			state.setPosterior(posterior);
+			if (posterior instanceof CompoundDistribution && ((CompoundDistribution) posterior).pDistributions.get().size() > 1) {
+				likelihood = ((CompoundDistribution) posterior).pDistributions.get().get(1);
+			}
+			Tree copy = copier.copy(model.tree);
+			for (Node node : copy.getNodesAsArray()) {
+				if (node == null) {
+					return;
+				}
+			}
+			tree = copy;
+		}
+
+		/** log posterior (or likelihood) after moving internal node with new taxon to branch above node nodeNr **/
+		double score(Model model, int internalNodeNr, int newTaxonNr, int nodeNr, boolean useLikelihoodNotPosterior) {
+			if (usedLikelihood != useLikelihoodNotPosterior) {
+				// parts of the posterior not in the likelihood may not be up to date
+				usedLikelihood = useLikelihoodNotPosterior;
+				needsFullUpdate = true;
+			}
+			List<StateNode> source = model.state.stateNodeInput.get();
+			List<StateNode> target = state.stateNodeInput.get();
+			if (needsParameterUpdate) {
+				for (int i = 0; i < source.size() && !needsFullUpdate; i++) {
+					if (!(source.get(i) instanceof Tree) && !copyChangedValues(source.get(i), target.get(i))) {
+						needsFullUpdate = true;
+					}
+				}
+				needsParameterUpdate = false;
+			}
+			if (needsFullUpdate) {
+				for (int i = 0; i < source.size(); i++) {
+					if (!(source.get(i) instanceof Tree)) {
+						Util.copyStateNode(source.get(i), target.get(i));
+					}
+				}
+				state.setEverythingDirty(true);
+				needsFullUpdate = false;
+			}
+			synchroniseTree(model.tree);
+			Node [] nodes = tree.getNodesAsArray();
+			placer.internalNode = nodes[internalNodeNr];
+			return placer.tryBranch(nodes[newTaxonNr], nodes[nodeNr], state, useLikelihoodNotPosterior ? likelihood : posterior, tree);
+		}
+
+		/** copy values of parameter that differ, marking only those as dirty.
+		 * Returns false if source is not a parameter of the same dimension as target **/
+		private boolean copyChangedValues(StateNode source, StateNode target) {
+			if (!(source instanceof Parameter<?>) || source.getClass() != target.getClass() ||
+					((Parameter<?>) source).getDimension() != ((Parameter<?>) target).getDimension()) {
+				return false;
+			}
+			Parameter<?> p = (Parameter<?>) source;
+			Parameter<?> q = (Parameter<?>) target;
+			for (int i = 0; i < p.getDimension(); i++) {
+				double value = p.getArrayValue(i);
+				if (value != q.getArrayValue(i)) {
+					// only changed values are boxed
+					if (q instanceof RealParameter) {
+						((RealParameter) q).setValue(i, value);
+					} else if (q instanceof IntegerParameter) {
+						((IntegerParameter) q).setValue(i, (int) value);
+					} else if (q instanceof BooleanParameter) {
+						((BooleanParameter) q).setValue(i, value != 0);
+					} else {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		/** make topology and heights equal to those of source, which may have unattached nodes **/
+		private void synchroniseTree(Tree source) {
+			Node [] src = source.getNodesAsArray();
+			Node [] nodes = tree.getNodesAsArray();
+			
+			// the root node keeps its number in both trees, so its object stays the root of the copy
+			int rootNr = source.getRoot().getNr();
+			Node root = tree.getRoot();
+			if (root.getNr() != rootNr) {
+				Node other = nodes[rootNr];
+				nodes[root.getNr()] = other;
+				other.setNr(root.getNr());
+				nodes[rootNr] = root;
+				root.setNr(rootNr);
+			}
+
+			// nodes not in the source tree, or stale entries of nodes that were renumbered, have no place in the tree
+			Node [] parents = new Node[nodes.length];
+			boolean [] attached = new boolean[nodes.length];
+			for (int i = 0; i < nodes.length; i++) {
+				attached[i] = src[i] != null && src[i].getNr() == i && (src[i].getParent() != null || src[i] == source.getRoot());
+				if (attached[i] && src[i].getParent() != null) {
+					parents[i] = nodes[src[i].getParent().getNr()];
+				}
+			}
+
+			boolean changed = false;
+			for (int i = 0; i < nodes.length; i++) {
+				Node node = nodes[i];
+				if (node.getParent() != parents[i]) {
+					node.makeDirty(Tree.IS_FILTHY);
+					changed = true;
+				}
+				if (!sameChildren(node, attached[i] ? src[i] : null, nodes)) {
+					node.removeAllChildren(false);
+					if (attached[i]) {
+						for (Node child : src[i].getChildren()) {
+							node.addChild(nodes[child.getNr()]);
+						}
+					}
+					node.makeDirty(Tree.IS_FILTHY);
+					changed = true;
+				}
+			}
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i].setParent(parents[i], false);
+			}
+			if (changed) {
+				tree.startEditing(null);
+			}
+			// heights last, so children of nodes with new heights are marked dirty as well
+			for (int i = 0; i < nodes.length; i++) {
+				if (attached[i] && nodes[i].getHeight() != src[i].getHeight()) {
+					nodes[i].setHeight(src[i].getHeight());
+				}
+			}
+		}
+
+		private boolean sameChildren(Node node, Node src, Node [] nodes) {
+			int count = src == null ? 0 : src.getChildCount();
+			if (node.getChildCount() != count) {
+				return false;
+			}
+			for (int i = 0; i < count; i++) {
+				if (node.getChild(i) != nodes[src.getChild(i).getNr()]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
 }
@@ -0,0 +1,157 @@
+package online.treeexpander;
+
+import java.util.List;
+
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
+import beast.base.inference.parameter.RealParameter;
+
+/** Values per node of clock model parameters, like branch rates and rate categories, kept in
+ * primitive arrays indexed by node number while a tree is expanded. Values follow nodes that are
+ * renumbered, and only values that changed are written back to the parameters.
+ * Integer parameters and boolean parameters (as 0 and 1) are kept in int arrays, real parameters
+ * in double arrays.
+ **/
+class NodeValues {
+	private Parameter<?> [] parameters = new Parameter<?>[0];
+	/** values by parameter and node number, null for parameters kept in ints **/
+	private double [][] reals = new double[0][];
+	/** values by parameter and node number, null for parameters kept in reals **/
+	private int [][] ints = new int[0][];
+	/** values before renumbering started **/
+	private double [][] previousReals = new double[0][];
+	private int [][] previousInts = new int[0][];
+	/** value of new nodes for integer parameters **/
+	private int [] intDefaults = new int[0];
+
+	/** node numbers with values that are not written to the parameters yet **/
+	private boolean [] isChanged = new boolean[0];
+	private int [] changed = new int[0];
+	private int changedCount = 0;
+
+	/** read values of all parameters, reusing arrays of an earlier call where dimensions match **/
+	void load(List<Parameter<?>> parameterList) {
+		int n = parameterList.size();
+		if (parameters.length != n) {
+			parameters = new Parameter<?>[n];
+			reals = new double[n][];
+			ints = new int[n][];
+			previousReals = new double[n][];
+			previousInts = new int[n][];
+			intDefaults = new int[n];
+		}
+		int maxDimension = 0;
+		for (int k = 0; k < n; k++) {
+			Parameter<?> p = parameterList.get(k);
+			parameters[k] = p;
+			int dim = p.getDimension();
+			maxDimension = Math.max(maxDimension, dim);
+			if (p instanceof RealParameter) {
+				ints[k] = null;
+				previousInts[k] = null;
+				if (reals[k] == null || reals[k].length != dim) {
+					reals[k] = new double[dim];
+					previousReals[k] = new double[dim];
+				}
+				double [] values = reals[k];
+				for (int i = 0; i < dim; i++) {
+					values[i] = p.getArrayValue(i);
+				}
+			} else {
+				reals[k] = null;
+				previousReals[k] = null;
+				if (ints[k] == null || ints[k].length != dim) {
+					ints[k] = new int[dim];
+					previousInts[k] = new int[dim];
+				}
+				int [] values = ints[k];
+				for (int i = 0; i < dim; i++) {
+					values[i] = (int) p.getArrayValue(i);
+				}
+				if (p instanceof IntegerParameter) {
+					// TODO: robustify this?
+					IntegerParameter ip = (IntegerParameter) p;
+					intDefaults[k] = (ip.getUpper() - ip.getLower())/2;
+				} else {
+					intDefaults[k] = 0;
+				}
+			}
+		}
+		if (isChanged.length < maxDimension) {
+			isChanged = new boolean[maxDimension];
+			changed = new int[maxDimension];
+		}
+		changedCount = 0;
+	}
+
+	/** remember current values, so renumbered() can move them while nodes are renumbered **/
+	void startRenumbering() {
+		for (int k = 0; k < parameters.length; k++) {
+			if (reals[k] != null) {
+				System.arraycopy(reals[k], 0, previousReals[k], 0, reals[k].length);
+			} else {
+				System.arraycopy(ints[k], 0, previousInts[k], 0, ints[k].length);
+			}
+		}
+	}
+
+	/** node with number oldNr got number newNr since startRenumbering() **/
+	void renumbered(int oldNr, int newNr) {
+		for (int k = 0; k < parameters.length; k++) {
+			if (reals[k] != null) {
+				if (oldNr < reals[k].length && newNr < reals[k].length) {
+					reals[k][newNr] = previousReals[k][oldNr];
+				}
+			} else if (oldNr < ints[k].length && newNr < ints[k].length) {
+				ints[k][newNr] = previousInts[k][oldNr];
+			}
+		}
+		setChanged(newNr);
+	}
+
+	/** set values for node with number nr to those of a newly added node **/
+	void setDefault(int nr) {
+		for (int k = 0; k < parameters.length; k++) {
+			if (reals[k] != null) {
+				if (nr < reals[k].length) {
+					// TODO: robustify this
+					reals[k][nr] = 1.0;
+				}
+			} else if (nr < ints[k].length) {
+				ints[k][nr] = intDefaults[k];
+			}
+		}
+		setChanged(nr);
+	}
+
+	private void setChanged(int nr) {
+		if (nr < isChanged.length && !isChanged[nr]) {
+			isChanged[nr] = true;
+			changed[changedCount++] = nr;
+		}
+	}
+
+	/** write values that changed since the last call to the parameters **/
+	void store() {
+		for (int c = 0; c < changedCount; c++) {
+			int nr = changed[c];
+			isChanged[nr] = false;
+			for (int k = 0; k < parameters.length; k++) {
+				Parameter<?> p = parameters[k];
+				if (reals[k] != null) {
+					if (nr < reals[k].length && reals[k][nr] != p.getArrayValue(nr)) {
+						((RealParameter) p).setValue(nr, reals[k][nr]);
+					}
+				} else if (nr < ints[k].length && ints[k][nr] != (int) p.getArrayValue(nr)) {
+					if (p instanceof BooleanParameter) {
+						((BooleanParameter) p).setValue(nr, ints[k][nr] != 0);
+					} else {
+						((IntegerParameter) p).setValue(nr, ints[k][nr]);
+					}
+				}
+			}
+		}
+		changedCount = 0;
+	}
+}
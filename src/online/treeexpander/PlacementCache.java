@@ -0,0 +1,171 @@
+package online.treeexpander;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import beast.base.evolution.tree.Node;
+
+/** Remembers next to which clades new taxa were placed, so placement in trees of other samples
+ * that contain the same clade can start there. Clades are identified by the set of node numbers
+ * of their taxa, as given by the map from taxon names to node numbers of the tree expander,
+ * so the cache can be shared between trees and models of the same analysis.
+ *
+ * Since taxa are added in the same order for every sample, the clades present when a taxon
+ * is placed consist of the same set of taxa in every sample.
+ *
+ * Clades are looked up by a 64 bit hash, the sum of fixed random keys of their taxa, which is
+ * computed for all clades of a tree in a single post-order pass. Sets of taxa are only compared
+ * for clades whose hash matches that of a clade in the cache.
+ *
+ * The cache is not thread safe. Each worker keeps its own, since placements recorded by other
+ * threads would make the outcome depend on the order in which samples finish. Sharing at a fixed
+ * point, like the end of a cycle, would not help: taxa are only placed in the first cycle, later
+ * cycles only run MCMC. A worker starts on a contiguous slice of the samples, that is neighbouring
+ * states of the chain with similar trees, so its own placements are the ones most likely to match,
+ * and all samples but the first one a worker processes benefit.
+ **/
+public class PlacementCache {
+	/** clade a taxon was placed next to, with the number of times it was, chained with clades with the same hash **/
+	private static class Clade {
+		final BitSet taxa;
+		final int taxonCount;
+		int count;
+		final Clade next;
+
+		Clade(BitSet taxa, Clade next) {
+			this.taxa = taxa;
+			this.taxonCount = taxa.cardinality();
+			this.next = next;
+		}
+	}
+
+	/** clades taxa were placed next to, by taxon and hash of the clade **/
+	private final Map<String, Map<Long, Clade>> placements = new HashMap<>();
+
+	/** hashes and taxon counts of clades of children still waiting for their parent in getClade **/
+	private long [] hashes = new long[16];
+	private int [] taxonCounts = new int[16];
+
+	/** record that taxon was placed on the branch above clade, with map from taxon names to numbers **/
+	public void add(String taxon, Node clade, Map<String, Integer> map) {
+		BitSet taxa = getClade(clade, map);
+		long hash = 0;
+		for (int nr = taxa.nextSetBit(0); nr >= 0; nr = taxa.nextSetBit(nr + 1)) {
+			hash += getKey(nr);
+		}
+		Map<Long, Clade> clades = placements.computeIfAbsent(taxon, k -> new HashMap<>());
+		Clade first = clades.get(hash);
+		Clade c = first;
+		while (c != null && !c.taxa.equals(taxa)) {
+			c = c.next;
+		}
+		if (c == null) {
+			c = new Clade(taxa, first);
+			clades.put(hash, c);
+		}
+		c.count++;
+	}
+
+	/** clade in subtree most often seen next to taxon in earlier placements, or null if there is none **/
+	public Node getClade(String taxon, Node subtree, Map<String, Integer> map) {
+		Map<Long, Clade> clades = placements.get(taxon);
+		if (clades == null) {
+			return null;
+		}
+		// hashes of all nodes in post-order, those of children are on top of the stack when their parent is done
+		Node best = null;
+		int bestCount = 0;
+		Deque<Node> stack = new ArrayDeque<>();
+		int depth = 0;
+		Node node = subtree;
+		Node last = null;
+		while (node != null || !stack.isEmpty()) {
+			if (node != null) {
+				stack.push(node);
+				node = node.isLeaf() ? null : node.getChild(0);
+				continue;
+			}
+			Node top = stack.peek();
+			int i = top.isLeaf() ? 0 : top.getChildren().indexOf(last) + 1;
+			if (!top.isLeaf() && i < top.getChildCount()) {
+				node = top.getChild(i);
+				continue;
+			}
+			stack.pop();
+			long hash;
+			int taxonCount;
+			if (top.isLeaf()) {
+				hash = getKey(map.get(top.getID()));
+				taxonCount = 1;
+			} else {
+				hash = 0;
+				taxonCount = 0;
+				for (int k = 0; k < top.getChildCount(); k++) {
+					depth--;
+					hash += hashes[depth];
+					taxonCount += taxonCounts[depth];
+				}
+			}
+			if (depth == hashes.length) {
+				hashes = Arrays.copyOf(hashes, depth * 2);
+				taxonCounts = Arrays.copyOf(taxonCounts, depth * 2);
+			}
+			hashes[depth] = hash;
+			taxonCounts[depth] = taxonCount;
+			depth++;
+
+			Clade c = clades.get(hash);
+			while (c != null) {
+				if (c.count > bestCount && c.taxonCount == taxonCount && containsAll(c.taxa, top, map)) {
+					best = top;
+					bestCount = c.count;
+				}
+				c = c.next;
+			}
+			last = top;
+		}
+		return best;
+	}
+
+	public void clear() {
+		placements.clear();
+	}
+
+	/** whether taxa contains all taxa of clade **/
+	private static boolean containsAll(BitSet taxa, Node clade, Map<String, Integer> map) {
+		if (clade.isLeaf()) {
+			return taxa.get(map.get(clade.getID()));
+		}
+		for (Node leaf : clade.getAllLeafNodes()) {
+			if (!taxa.get(map.get(leaf.getID()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** fixed random key of taxon with number nr (SplitMix64), so hashes of clades are sums of keys of their taxa **/
+	static long getKey(int nr) {
+		long z = (nr + 1) * 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/** numbers of taxa in clade **/
+	static BitSet getClade(Node clade, Map<String, Integer> map) {
+		BitSet taxa = new BitSet();
+		if (clade.isLeaf()) {
+			taxa.set(map.get(clade.getID()));
+			return taxa;
+		}
+		for (Node leaf : clade.getAllLeafNodes()) {
+			taxa.set(map.get(leaf.getID()));
+		}
+		return taxa;
+	}
+}
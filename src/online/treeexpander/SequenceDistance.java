@@ -0,0 +1,50 @@
+package online.treeexpander;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.datatype.DataType;
+
+/** Sequences of an alignment as arrays of states per pattern, calculated once,
+ * for quick p-distances between taxa that do not involve any likelihood calculation.
+ * Ambiguous states and gaps are ignored.
+ **/
+class SequenceDistance {
+	private final Alignment data;
+	/** state per taxon per pattern, or -1 if ambiguous **/
+	private final int [][] states;
+	private final int [] weights;
+
+	SequenceDistance(Alignment data) {
+		this.data = data;
+		DataType dataType = data.getDataType();
+		int patternCount = data.getPatternCount();
+		states = new int[data.getTaxonCount()][patternCount];
+		weights = new int[patternCount];
+		for (int p = 0; p < patternCount; p++) {
+			weights[p] = data.getPatternWeight(p);
+			for (int t = 0; t < states.length; t++) {
+				int code = data.getPattern(t, p);
+				states[t][p] = dataType.isAmbiguousCode(code) ? -1 : code;
+			}
+		}
+	}
+
+	/** add number of sites that differ to counts[0] and number of sites compared to counts[1]
+	 * for the sequences of taxa with IDs id1 and id2, if both are in the alignment **/
+	void count(String id1, String id2, double [] counts) {
+		int i = data.getTaxonIndex(id1);
+		int j = data.getTaxonIndex(id2);
+		if (i < 0 || j < 0) {
+			return;
+		}
+		int [] s1 = states[i];
+		int [] s2 = states[j];
+		for (int p = 0; p < weights.length; p++) {
+			if (s1[p] >= 0 && s2[p] >= 0) {
+				counts[1] += weights[p];
+				if (s1[p] != s2[p]) {
+					counts[0] += weights[p];
+				}
+			}
+		}
+	}
+}
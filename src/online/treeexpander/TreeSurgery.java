@@ -0,0 +1,217 @@
+package online.treeexpander;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.Log;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+
+/** Tree surgery used while expanding trees: pruning taxa, grafting and rerooting,
+ * renumbering nodes and shifting heights.
+ *
+ * Traversals use explicit stacks instead of recursion, so trees with tens of thousands of
+ * taxa cannot overflow the call stack, and scratch buffers are kept between calls, so the
+ * expansion loop does not allocate. An instance is not thread safe: every expander has its own.
+ **/
+public class TreeSurgery {
+	/** called for every node that gets another number when renumbering **/
+	public interface Renumbering {
+		void renumbered(int oldNr, int newNr);
+	}
+
+	private Node [] stack = new Node[64];
+	private Node [] order = new Node[64];
+	private Node [] results = new Node[64];
+	private Node [] children1 = new Node[4];
+	private Node [] children2 = new Node[4];
+
+	/**
+	 * Lists nodes of subtree in post-order, children from left to right before their parent,
+	 * in the buffer returned by getOrder(), which is reused by the next call.
+	 * @return number of nodes in subtree
+	 */
+	public int postOrder(Node subtree) {
+		int count = 0;
+		int top = 0;
+		stack[top++] = subtree;
+		while (top > 0) {
+			Node node = stack[--top];
+			if (count == order.length) {
+				order = grow(order);
+			}
+			order[count++] = node;
+			for (int i = 0; i < node.getChildCount(); i++) {
+				if (top == stack.length) {
+					stack = grow(stack);
+				}
+				stack[top++] = node.getChild(i);
+			}
+		}
+		// that was pre-order with children from right to left
+		for (int i = 0, j = count - 1; i < j; i++, j--) {
+			Node tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+		return count;
+	}
+
+	/** nodes listed by the last call to postOrder **/
+	public Node [] getOrder() {
+		return order;
+	}
+
+	/**
+	 * Removes leaves with IDs in taxaToExclude from the binary tree below node,
+	 * along with internal nodes that are left with a single child.
+	 * @param taxaToExclude sorted list of taxa
+	 * @return node that takes the place of node, or null if no leaf is left
+	 */
+	public Node prune(Node node, List<String> taxaToExclude) {
+		int count = postOrder(node);
+		if (results.length < count) {
+			results = new Node[order.length];
+		}
+		// results of children are on top of the result stack when their parent is visited
+		int top = 0;
+		for (int k = 0; k < count; k++) {
+			Node n = order[k];
+			if (n.isLeaf()) {
+				results[top++] = Collections.binarySearch(taxaToExclude, n.getID()) < 0 ? n : null;
+			} else {
+				Node right = results[--top];
+				Node left = results[--top];
+				if (left == null) {
+					results[top++] = right;
+				} else if (right == null) {
+					results[top++] = left;
+				} else {
+					n.removeAllChildren(false);
+					n.addChild(left);
+					n.addChild(right);
+					results[top++] = n;
+				}
+			}
+		}
+		return results[0];
+	}
+
+	/** put internalNode on the branch above node, taking the place of node as child of its parent **/
+	public void graft(Node internalNode, Node node) {
+		Node parent = node.getParent();
+		parent.removeChild(node);
+		parent.addChild(internalNode);
+		internalNode.addChild(node);
+	}
+
+	/** changes root of tree in such a way that the original root
+	 * node remains root node, swapping nodes if required
+	 */
+	public void setRoot(Tree tree, Node newRoot) {
+		if (tree.getRoot() == newRoot) {
+			return;
+		}
+		// swap root nodes
+		Node oldRoot = tree.getRoot();
+		int count1 = copyChildren(oldRoot, true);
+		int count2 = copyChildren(newRoot, false);
+		Node parent = oldRoot.getParent();
+
+		oldRoot.removeAllChildren(false);
+		parent.removeChild(oldRoot);
+		newRoot.removeAllChildren(false);
+
+		for (int i = 0; i < count1; i++) {
+			Node child = children1[i];
+			if (child != newRoot) {
+				newRoot.addChild(child);
+			} else {
+				throw new IllegalArgumentException("Don't know how to handle this");
+			}
+		}
+		if (parent != newRoot) {
+			parent.addChild(newRoot);
+		}
+		for (int i = 0; i < count2; i++) {
+			Node child = children2[i];
+			if (child != oldRoot) {
+				oldRoot.addChild(child);
+			} else {
+				oldRoot.addChild(newRoot);
+			}
+		}
+		oldRoot.setParent(null);
+
+		double tmp = newRoot.getHeight();
+		newRoot.setHeight(oldRoot.getHeight());
+		oldRoot.setHeight(tmp);
+	}
+
+	private int copyChildren(Node node, boolean first) {
+		int count = node.getChildCount();
+		if (first) {
+			if (children1.length < count) {
+				children1 = new Node[count];
+			}
+		} else if (children2.length < count) {
+			children2 = new Node[count];
+		}
+		Node [] children = first ? children1 : children2;
+		for (int i = 0; i < count; i++) {
+			children[i] = node.getChild(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Renumbers nodes below root: leaves get the number of their taxon in map, internal nodes
+	 * are numbered in post-order starting at firstInternalNr. Nodes are stored at their number in nodes.
+	 * @param renumbering notified of every node that gets another number
+	 * @return number of the next internal node
+	 */
+	public int renumber(Node root, Node [] nodes, Map<String, Integer> map, int firstInternalNr, Renumbering renumbering) {
+		int count = postOrder(root);
+		int nr = firstInternalNr;
+		for (int k = 0; k < count; k++) {
+			Node node = order[k];
+			if (!node.isLeaf()) {
+				int i = node.getNr();
+				if (i != nr) {
+					renumbering.renumbered(i, nr);
+				}
+				// update node number
+				node.setNr(nr);
+				nr++;
+			} else { // node is leaf
+				int i = node.getNr();
+				Integer j = node.getID() == null || map == null ? null : map.get(node.getID());
+				if (j == null) {
+					Log.warning("WARNING: programmer error -- Taxon found " + node.getID() + " that should have been removed");
+					Log.warning("WARNING: Expect a crash.");
+				} else if (i != j) {
+					Log.debug(node.getID() + " " + i +" => " + j);
+					node.setNr(j);
+					renumbering.renumbered(i, j);
+				}
+			}
+			nodes[node.getNr()] = node;
+		}
+		return nr;
+	}
+
+	/** add delta to heights of all nodes in subtree **/
+	public void shiftHeights(Node subtree, double delta) {
+		int count = postOrder(subtree);
+		for (int k = 0; k < count; k++) {
+			order[k].setHeight(order[k].getHeight() + delta);
+		}
+	}
+
+	private Node [] grow(Node [] buffer) {
+		Node [] newBuffer = new Node[buffer.length * 2];
+		System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+		return newBuffer;
+	}
+}
@@ -0,0 +1,106 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import online.treeexpander.AllBranchExpander;
+
+public class AllBranchExpanderTest {
+	/** orangutan is the new taxon, joined to the root **/
+	final static String TREE = "(((human:0.024003,chimp:0.024003):0.010772,gorilla:0.034775):0.045864,orangutan:0.080639)";
+	/** orangutan joined halfway the branch above human, chimp's parent and gorilla respectively **/
+	final static String ABOVE_HUMAN = "(((human:0.0120015,orangutan:0.0120015):0.0120015,chimp:0.024003):0.010772,gorilla:0.034775)";
+	final static String ABOVE_HUMAN_CHIMP = "(((human:0.024003,chimp:0.024003):0.005386,orangutan:0.029389):0.005386,gorilla:0.034775)";
+	final static String ABOVE_GORILLA = "((human:0.024003,chimp:0.024003):0.010772,(gorilla:0.0173875,orangutan:0.0173875):0.0173875)";
+
+	static TreeParser getTree(Alignment data, String newick) {
+		TreeParser tree = new TreeParser();
+		tree.initByName("taxa", data, "newick", newick, "IsLabelledNewick", true);
+		return tree;
+	}
+
+	static TreeLikelihood getLikelihood(Alignment data, Tree tree, double proportionInvariant) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", "2.5", "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", "0.3",
+				"proportionInvariant", new RealParameter(proportionInvariant + ""), "substModel", hky);
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		State state = new State();
+		state.initByName("stateNode", Arrays.asList(tree));
+		return likelihood;
+	}
+
+	static Node getNode(Tree tree, String id) {
+		for (Node node : tree.getNodesAsArray()) {
+			if (id.equals(node.getID())) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/** compare scores of branches with the tree likelihood of trees with orangutan placed there **/
+	private void assertScoresEqualTreeLikelihood(Alignment data, double proportionInvariant) {
+		Tree tree = getTree(data, TREE);
+		TreeLikelihood likelihood = getLikelihood(data, tree, proportionInvariant);
+		double logP = likelihood.calculateLogP();
+		Node newTaxon = getNode(tree, "orangutan");
+		double [] logL = AllBranchExpander.scoreBranches(likelihood, tree, newTaxon);
+
+		// new taxon at the root
+		Node subtree = newTaxon.getParent().getChild(0) == newTaxon ? newTaxon.getParent().getChild(1) : newTaxon.getParent().getChild(0);
+		assertEquals(logP, logL[subtree.getNr()], 1e-8);
+
+		Node human = getNode(tree, "human");
+		assertEquals(logP(data, ABOVE_HUMAN, proportionInvariant), logL[human.getNr()], 1e-8);
+		assertEquals(logP(data, ABOVE_HUMAN_CHIMP, proportionInvariant), logL[human.getParent().getNr()], 1e-8);
+		assertEquals(logP(data, ABOVE_GORILLA, proportionInvariant), logL[getNode(tree, "gorilla").getNr()], 1e-8);
+
+		assertEquals(Double.NEGATIVE_INFINITY, logL[newTaxon.getNr()], 0.0);
+		assertEquals(Double.NEGATIVE_INFINITY, logL[tree.getRoot().getNr()], 0.0);
+	}
+
+	private double logP(Alignment data, String newick, double proportionInvariant) {
+		Tree tree = getTree(data, newick);
+		return getLikelihood(data, tree, proportionInvariant).calculateLogP();
+	}
+
+	@Test
+	public void testScoreEqualsTreeLikelihood() {
+		assertScoresEqualTreeLikelihood(GraphCopierTest.getAlignment(), 0.0);
+	}
+
+	@Test
+	public void testInvariantSites() {
+		assertScoresEqualTreeLikelihood(GraphCopierTest.getAlignment(), 0.3);
+	}
+
+	@Test
+	public void testAmbiguousCodes() {
+		Sequence human = new Sequence("human", "AGAAATATGTCTGATAAAAGAGTTACTTTGATAGAGTAAATAATAGGAGCTTAAACCCC");
+		Sequence chimp = new Sequence("chimp", "AGAAATATGTCTGATAAAAGAATTACTTTGATRGAGTAAATAATAGGAGTTCAAATCCC");
+		Sequence gorilla = new Sequence("gorilla", "AGAAATATGTCTGATAAYAGAGTTACTTTGATAGAGTAAATNNNNNNNGGTTTAAACCC");
+		Sequence orangutan = new Sequence("orangutan", "AGAAATATGTCTGACAAAAGAGTTAC--TGATAGAGTAAAAAATAGAGGTCTRYNTCCC");
+		Alignment data = new Alignment(Arrays.asList(human, chimp, gorilla, orangutan), "nucleotide");
+		assertScoresEqualTreeLikelihood(data, 0.0);
+		assertScoresEqualTreeLikelihood(data, 0.3);
+	}
+}
@@ -0,0 +1,278 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.Parameter;
+import beast.base.inference.parameter.RealParameter;
+import online.StorableState.MultiStateFormat;
+import online.multistate.BinaryMultiStateReader;
+import online.multistate.BinaryMultiStateWriter;
+import online.multistate.MultiStateReader;
+import online.multistate.MultiStateSource;
+import online.multistate.MultiStateWriter;
+import online.tools.MultiStateConverter;
+
+public class BinaryMultiStateTest {
+	final static String TREE1 = "((A:1.0,B:1.0):2.0,(C:0.5,(D:0.25,E:0.25):0.25):2.5)";
+	/** other topology, with children not in the order of their node numbers **/
+	final static String TREE2 = "((E:1.5,(C:0.5,A:0.5):1.0):0.5,(D:1.0,B:1.0):1.0)";
+	final static String TREE6 = "(((A:1.0,B:1.0):1.0,F:2.0):1.0,(C:1.5,(D:0.5,E:0.5):1.0):1.5)";
+
+	@TempDir
+	File dir;
+
+	/** state node without a binary representation, so it is stored as XML in binary files **/
+	public static class Counter extends StateNode {
+		int count;
+
+		public Counter() {
+		}
+
+		Counter(String id, int count) {
+			setID(id);
+			this.count = count;
+		}
+
+		public void initAndValidate() {
+		}
+
+		public String toString() {
+			return Integer.toString(count);
+		}
+
+		public void fromXML(org.w3c.dom.Node node) {
+			count = Integer.parseInt(node.getTextContent().trim());
+		}
+
+		public StateNode copy() {
+			return new Counter(getID(), count);
+		}
+
+		public void assignTo(StateNode other) {
+			((Counter) other).count = count;
+		}
+
+		public void assignFrom(StateNode other) {
+			setID(other.getID());
+			count = ((Counter) other).count;
+		}
+
+		public void assignFromWithoutID(StateNode other) {
+			count = ((Counter) other).count;
+		}
+
+		public void assignFromFragile(StateNode other) {
+			count = ((Counter) other).count;
+		}
+
+		public int scale(double scale) {
+			return 0;
+		}
+
+		protected void store() {
+		}
+
+		public void restore() {
+		}
+
+		public void setEverythingDirty(boolean isDirty) {
+		}
+
+		public int getDimension() {
+			return 1;
+		}
+
+		public double getArrayValue(int dim) {
+			return count;
+		}
+
+		public void init(PrintStream out) {
+		}
+
+		public void log(long sample, PrintStream out) {
+		}
+
+		public void close(PrintStream out) {
+		}
+	}
+
+	static Tree getTree(String newick) {
+		// taxon set fixes node numbers of leaves, whatever order they appear in in the newick
+		List<Taxon> taxa = new ArrayList<>();
+		for (String name : new String[] {"A", "B", "C", "D", "E", "F"}) {
+			if (newick.contains(name + ":")) {
+				taxa.add(new Taxon(name));
+			}
+		}
+		TreeParser tree = new TreeParser();
+		tree.initByName("taxonset", new TaxonSet(taxa), "newick", newick, "IsLabelledNewick", true, "adjustTipHeights", false);
+		tree.setID("tree");
+		return tree;
+	}
+
+	/** state with a tree, real, integer and boolean parameters and a state node stored as XML **/
+	static State getState(String newick, String rates, int minorDimension, String categories, String indicators, int count) {
+		RealParameter rateParameter = new RealParameter();
+		rateParameter.initByName("value", rates, "lower", 0.0, "upper", 10.0, "minordimension", minorDimension);
+		rateParameter.setID("rates");
+		IntegerParameter categoryParameter = new IntegerParameter();
+		categoryParameter.initByName("value", categories, "lower", 0, "upper", 3);
+		categoryParameter.setID("categories");
+		BooleanParameter indicatorParameter = new BooleanParameter();
+		indicatorParameter.initByName("value", indicators);
+		indicatorParameter.setID("indicators");
+		State state = new State();
+		state.initByName("stateNode", Arrays.asList(getTree(newick), rateParameter, categoryParameter, indicatorParameter, new Counter("count", count)));
+		return state;
+	}
+
+	static State getState1() {
+		return getState(TREE1, "1.0 2.0 3.0 4.0 5.0 6.0", 2, "0 1 2 3", "true false true", 7);
+	}
+
+	static State getState2() {
+		return getState(TREE2, "0.5 1.5 2.5 3.5", 4, "3 2 1 0", "false false true", 11);
+	}
+
+	/** state to restore into, with values, bounds and dimensions that differ from those stored **/
+	static State getTarget(String newick) {
+		return getState(newick, "9.0 9.0", 1, "2 2 2 2 2", "true true", 0);
+	}
+
+	/** everything a state holds, with heights rounded so states restored from XML compare equal **/
+	static String describe(State state, boolean withMinorDimension) {
+		StringBuilder buf = new StringBuilder();
+		for (StateNode stateNode : state.stateNodeInput.get()) {
+			buf.append(stateNode.getID()).append(':');
+			if (stateNode instanceof Tree) {
+				Tree tree = (Tree) stateNode;
+				buf.append(' ').append(tree.getNodeCount());
+				for (Node node : tree.getNodesAsArray()) {
+					Node parent = node.getParent();
+					buf.append(" [").append(node.getNr()).append(' ').append(node.getID());
+					buf.append(' ').append(parent == null ? -1 : parent.getNr());
+					buf.append(' ').append(parent == null ? 0 : parent.getChildren().indexOf(node));
+					buf.append(' ').append(String.format("%.12g", node.getHeight())).append(']');
+				}
+			} else if (stateNode instanceof Parameter<?>) {
+				Parameter<?> p = (Parameter<?>) stateNode;
+				buf.append(' ').append(p.getDimension());
+				if (withMinorDimension) {
+					buf.append('x').append(p.getMinorDimension1());
+				}
+				if (!(p instanceof BooleanParameter)) {
+					buf.append(" [").append(p.getLower()).append(',').append(p.getUpper()).append(']');
+				}
+				for (int i = 0; i < p.getDimension(); i++) {
+					buf.append(' ').append(p.getValue(i));
+				}
+			} else {
+				buf.append(' ').append(stateNode.toString());
+			}
+			buf.append('\n');
+		}
+		return buf.toString();
+	}
+
+	private void writeBinary(File file, State... states) throws IOException {
+		BinaryMultiStateWriter out = new BinaryMultiStateWriter(file, false);
+		for (int k = 0; k < states.length; k++) {
+			out.write(states[k].stateNodeInput.get(), 100 * (k + 1));
+		}
+		out.close();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		State state1 = getState1();
+		State state2 = getState2();
+		File file = new File(dir, "test.state.multi");
+		writeBinary(file, state1, state2);
+
+		MultiStateSource fin = MultiStateSource.open(file);
+		assertEquals(BinaryMultiStateReader.class, fin.getClass());
+		assertEquals(2, fin.getStateCount());
+		assertEquals(100, fin.getSample(0));
+		assertEquals(200, fin.getSample(1));
+
+		// nodes of the tree are reused, since it has as many nodes as those stored
+		State target = getTarget("(((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5)");
+		Tree tree = (Tree) target.stateNodeInput.get().get(0);
+		Node [] nodes = tree.getNodesAsArray().clone();
+		fin.restoreState(1, target);
+		assertEquals(describe(state2, true), describe(target, true));
+		fin.restoreState(0, target);
+		assertEquals(describe(state1, true), describe(target, true));
+		for (int i = 0; i < nodes.length; i++) {
+			assertSame(nodes[i], tree.getNodesAsArray()[i]);
+		}
+		fin.close();
+	}
+
+	@Test
+	public void testRestoreTreeWithOtherNodeCount() throws IOException {
+		State state1 = getState1();
+		File file = new File(dir, "test.state.multi");
+		writeBinary(file, state1);
+
+		MultiStateSource fin = MultiStateSource.open(file);
+		State target = getTarget(TREE6);
+		fin.restoreState(0, target);
+		assertEquals(describe(state1, true), describe(target, true));
+		fin.close();
+	}
+
+	@Test
+	public void testConverter() throws IOException {
+		// same dimensions in all states, since restoring parameters from XML keeps their dimension
+		State state1 = getState1();
+		State state2 = getState(TREE2, "0.5 1.5 2.5 3.5 4.5 5.5", 2, "3 2 1 0", "false false true", 11);
+		File xmlFile = new File(dir, "test.state.multi");
+		MultiStateWriter xmlOut = new MultiStateWriter(xmlFile, false);
+		xmlOut.write(state1.stateNodeInput.get(), 100);
+		xmlOut.write(state2.stateNodeInput.get(), 200);
+		xmlOut.close();
+
+		File binaryFile = new File(dir, "test.binary.state.multi");
+		MultiStateSource xmlIn = MultiStateSource.open(xmlFile);
+		assertEquals(MultiStateReader.class, xmlIn.getClass());
+		MultiStateConverter.convert(xmlIn, getState1(), MultiStateFormat.binary, binaryFile);
+		File xmlFile2 = new File(dir, "test.xml.state.multi");
+		MultiStateSource binaryIn = MultiStateSource.open(binaryFile);
+		assertEquals(BinaryMultiStateReader.class, binaryIn.getClass());
+		MultiStateConverter.convert(binaryIn, getState1(), MultiStateFormat.xml, xmlFile2);
+		MultiStateSource xmlIn2 = MultiStateSource.open(xmlFile2);
+
+		State [] expected = {state1, state2};
+		for (MultiStateSource fin : new MultiStateSource[] {xmlIn, binaryIn, xmlIn2}) {
+			assertEquals(2, fin.getStateCount());
+			for (int k = 1; k >= 0; k--) {
+				assertEquals(100 * (k + 1), fin.getSample(k));
+				State target = getState1();
+				fin.restoreState(k, target);
+				assertEquals(describe(expected[k], false), describe(target, false));
+			}
+			fin.close();
+		}
+	}
+}
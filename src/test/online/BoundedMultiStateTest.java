@@ -0,0 +1,108 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import online.multistate.BoundedMultiStateWriter;
+import online.multistate.MultiStateIndex;
+import online.multistate.MultiStateReader;
+
+public class BoundedMultiStateTest {
+	final static int SAMPLE_INTERVAL = 10;
+
+	@TempDir
+	File dir;
+
+	/** state that grows with every sample, so slots have to be enlarged time and again **/
+	static String getState(long sample) {
+		StringBuilder buf = new StringBuilder();
+		buf.append("<itsabeastystatewerein version='2.0' sample='").append(sample).append("'>\n");
+		buf.append("<statenode id='x'>");
+		for (long i = 0; i < sample / SAMPLE_INTERVAL; i++) {
+			buf.append(i % 10);
+		}
+		buf.append("</statenode>\n");
+		buf.append("</itsabeastystatewerein>\n");
+		return buf.toString();
+	}
+
+	/** write states for samples first, first + SAMPLE_INTERVAL, ... up to last, checking the file after every state **/
+	private void writeStates(BoundedMultiStateWriter out, File file, int maxStates, long first, long last, Map<Long, String> written) throws IOException {
+		for (long sample = first; sample <= last; sample += SAMPLE_INTERVAL) {
+			String state = getState(sample);
+			written.put(sample, state);
+			out.write(state, sample);
+			out.flush();
+			assertFile(file, maxStates, first == 0 ? sample / SAMPLE_INTERVAL + 1 : maxStates, sample, written);
+		}
+	}
+
+	/** file holds evenly spaced states followed by the last state written, and the index matches the file **/
+	private void assertFile(File file, int maxStates, long writtenCount, long lastSample, Map<Long, String> written) throws IOException {
+		MultiStateIndex index = MultiStateIndex.load(file);
+		MultiStateIndex scanned = MultiStateIndex.build(file);
+		int n = index.getStateCount();
+		assertEquals(n, scanned.getStateCount());
+		for (int k = 0; k < n; k++) {
+			assertEquals(scanned.getSample(k), index.getSample(k));
+			assertEquals(scanned.getOffset(k), index.getOffset(k));
+			assertEquals(scanned.getLength(k), index.getLength(k));
+		}
+
+		assertTrue(n <= maxStates, n + " states");
+		assertTrue(n >= Math.min(writtenCount, maxStates / 2), n + " states");
+		assertEquals(0, index.getSample(0));
+		assertEquals(lastSample, index.getSample(n - 1));
+		if (n > 2) {
+			long spacing = index.getSample(1) - index.getSample(0);
+			for (int k = 0; k < n - 1; k++) {
+				assertEquals(k * spacing, index.getSample(k), "sample of state " + k);
+			}
+			long lastSpacing = index.getSample(n - 1) - index.getSample(n - 2);
+			assertTrue(lastSpacing > 0 && lastSpacing <= spacing, "last state " + lastSpacing + " after previous state");
+		}
+
+		MultiStateReader in = new MultiStateReader(file);
+		assertEquals(n, in.getStateCount());
+		for (int k = 0; k < n; k++) {
+			assertEquals(written.get(in.getSample(k)), in.getState(k), "state " + k);
+		}
+		in.close();
+	}
+
+	@Test
+	public void testThinning() throws IOException {
+		// with an even number of slots, thinning drops the state that was just written
+		for (int maxStates : new int[] {7, 8}) {
+			File file = new File(dir, "test" + maxStates + ".state.multi");
+			Map<Long, String> written = new HashMap<>();
+			BoundedMultiStateWriter out = new BoundedMultiStateWriter(file, maxStates, false);
+			writeStates(out, file, maxStates, 0, 100 * SAMPLE_INTERVAL, written);
+			out.close();
+		}
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		File file = new File(dir, "test.state.multi");
+		Map<Long, String> written = new HashMap<>();
+		BoundedMultiStateWriter out = new BoundedMultiStateWriter(file, 8, false);
+		writeStates(out, file, 8, 0, 30 * SAMPLE_INTERVAL, written);
+		out.close();
+
+		// last state of the first run is not on the grid, and should be replaced by the next state on the grid
+		out = new BoundedMultiStateWriter(file, 8, true);
+		assertEquals(MultiStateIndex.load(file).getStateCount(), out.getStateCount());
+		writeStates(out, file, 8, 31 * SAMPLE_INTERVAL, 70 * SAMPLE_INTERVAL, written);
+		out.close();
+		assertFile(file, 8, 71, 70 * SAMPLE_INTERVAL, written);
+	}
+}
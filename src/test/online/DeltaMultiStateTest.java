@@ -0,0 +1,140 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import online.multistate.BinaryMultiStateWriter;
+import online.multistate.DeltaMultiStateWriter;
+import online.multistate.DeltaSink;
+import online.multistate.MultiStateIndex;
+import online.multistate.MultiStateSource;
+import online.multistate.MultiStateWriter;
+
+public class DeltaMultiStateTest {
+	final static int KEYFRAME_INTERVAL = 3;
+	final static int STATE_COUNT = 7;
+
+	@TempDir
+	File dir;
+
+	/**
+	 * Writes STATE_COUNT states through a DeltaMultiStateWriter, changing a few state nodes between states.
+	 * State 4, in the middle of the second keyframe interval, changes the dimension of the rates if
+	 * changeDimension is set, and state 6 equals state 5, so is an empty delta.
+	 * @return description of every state written
+	 */
+	private String [] writeStates(DeltaSink sink, boolean changeDimension) throws IOException {
+		State state = BinaryMultiStateTest.getState1();
+		List<StateNode> stateNodes = state.stateNodeInput.get();
+		Tree tree = (Tree) stateNodes.get(0);
+		RealParameter rates = (RealParameter) stateNodes.get(1);
+		IntegerParameter categories = (IntegerParameter) stateNodes.get(2);
+		BinaryMultiStateTest.Counter counter = (BinaryMultiStateTest.Counter) stateNodes.get(4);
+
+		DeltaMultiStateWriter out = new DeltaMultiStateWriter(sink, KEYFRAME_INTERVAL);
+		String [] states = new String[STATE_COUNT];
+		for (int k = 0; k < STATE_COUNT; k++) {
+			switch (k) {
+			case 1: rates.setValue(0, 0.25); break;
+			case 2: tree.assignFromWithoutID(BinaryMultiStateTest.getTree(BinaryMultiStateTest.TREE2)); break;
+			case 3: counter.count = 12; break;
+			case 4:
+				if (changeDimension) {
+					rates.setDimension(8);
+					rates.setValue(7, 7.5);
+				} else {
+					rates.setValue(5, 7.5);
+				}
+				break;
+			case 5: categories.setValue(1, 3); break;
+			default: break;
+			}
+			out.write(stateNodes, 1000 * k);
+			states[k] = BinaryMultiStateTest.describe(state, true);
+		}
+		out.close();
+		return states;
+	}
+
+	/** restore states in an order that jumps back and forth over keyframes **/
+	private void assertRandomAccess(MultiStateSource fin, String [] states) throws IOException {
+		assertEquals(STATE_COUNT, fin.getStateCount());
+		State target = BinaryMultiStateTest.getState1();
+		for (int k : new int[] {4, 1, 6, 0, 5, 2, 3}) {
+			assertEquals(1000 * k, fin.getSample(k));
+			fin.restoreState(k, target);
+			assertEquals(states[k], BinaryMultiStateTest.describe(target, true), "state " + k);
+		}
+	}
+
+	/** applying states one after another gives the same states as restoring them **/
+	private void assertApplyStateInSequence(MultiStateSource fin, String [] states) throws IOException {
+		State target = BinaryMultiStateTest.getState1();
+		State restored = BinaryMultiStateTest.getState1();
+		for (int k = 0; k < STATE_COUNT; k++) {
+			fin.applyState(k, target);
+			fin.restoreState(k, restored);
+			assertEquals(states[k], BinaryMultiStateTest.describe(target, true), "state " + k);
+			assertEquals(BinaryMultiStateTest.describe(restored, true), BinaryMultiStateTest.describe(target, true), "state " + k);
+		}
+	}
+
+	@Test
+	public void testXMLDeltas() throws IOException {
+		File file = new File(dir, "test.state.multi");
+		// dimension stays the same, since restoring parameters from XML keeps their dimension
+		String [] states = writeStates(new MultiStateWriter(file, false), false);
+
+		MultiStateIndex index = MultiStateIndex.load(file);
+		assertEquals(STATE_COUNT, index.getStateCount());
+		for (int k = 0; k < STATE_COUNT; k++) {
+			assertEquals(k % KEYFRAME_INTERVAL != 0, index.isDelta(k));
+			assertEquals(k - k % KEYFRAME_INTERVAL, index.getKeyframe(k));
+		}
+
+		MultiStateSource fin = MultiStateSource.open(file);
+		assertRandomAccess(fin, states);
+		assertApplyStateInSequence(fin, states);
+		fin.close();
+	}
+
+	@Test
+	public void testBinaryDeltas() throws IOException {
+		File file = new File(dir, "test.state.multi");
+		String [] states = writeStates(new BinaryMultiStateWriter(file, false), false);
+
+		MultiStateSource fin = MultiStateSource.open(file);
+		assertRandomAccess(fin, states);
+		assertApplyStateInSequence(fin, states);
+		fin.close();
+	}
+
+	@Test
+	public void testDimensionChangeBetweenKeyframes() throws IOException {
+		File file = new File(dir, "test.state.multi");
+		String [] states = writeStates(new BinaryMultiStateWriter(file, false), true);
+
+		MultiStateSource fin = MultiStateSource.open(file);
+		assertRandomAccess(fin, states);
+		assertApplyStateInSequence(fin, states);
+
+		// back to the dimension of the first keyframe
+		State target = BinaryMultiStateTest.getState1();
+		fin.restoreState(5, target);
+		assertEquals(8, ((RealParameter) target.stateNodeInput.get().get(1)).getDimension());
+		fin.restoreState(2, target);
+		assertEquals(6, ((RealParameter) target.stateNodeInput.get().get(1)).getDimension());
+		fin.close();
+	}
+}
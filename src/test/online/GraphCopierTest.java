@@ -0,0 +1,114 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.evolution.substitutionmodel.HKY;
+import beast.base.evolution.tree.TreeParser;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import online.GraphCopier;
+
+public class GraphCopierTest {
+
+	static Alignment getAlignment() {
+		Sequence human = new Sequence("human", "AGAAATATGTCTGATAAAAGAGTTACTTTGATAGAGTAAATAATAGGAGCTTAAACCCCCTTATTTCTACTAGGACTATGAGAATCGAACCCATCCCTGAGAATCCAAAATTCTCCGTGCCACCTATCACACCCCATCCTAAGTAAGGTCAGCTAAATAAGCTATCGGGCCCATACCCCGAAAATGTTGGTTATACCCTTCCCGTACTAAGAAATTTAGGTTAAATACAGACCAAGAGCCTTCAAAGCCCTCAGTAAGTTG-CAATACTTAATTTCTG");
+		Sequence chimp = new Sequence("chimp", "AGAAATATGTCTGATAAAAGAATTACTTTGATAGAGTAAATAATAGGAGTTCAAATCCCCTTATTTCTACTAGGACTATAAGAATCGAACTCATCCCTGAGAATCCAAAATTCTCCGTGCCACCTATCACACCCCATCCTAAGTAAGGTCAGCTAAATAAGCTATCGGGCCCATACCCCGAAAATGTTGGTTACACCCTTCCCGTACTAAGAAATTTAGGTTAAGCACAGACCAAGAGCCTTCAAAGCCCTCAGCAAGTTA-CAATACTTAATTTCTG");
+		Sequence gorilla = new Sequence("gorilla", "AGAAATATGTCTGATAAAAGAGTTACTTTGATAGAGTAAATAATAGAGGTTTAAACCCCCTTATTTCTACTAGGACTATGAGAATTGAACCCATCCCTGAGAATCCAAAATTCTCCGTGCCACCTGTCACACCCCATCCTAAGTAAGGTCAGCTAAATAAGCTATCGGGCCCATACCCCGAAAATGTTGGTCACATCCTTCCCGTACTAAGAAATTTAGGTTAAACATAGACCAAGAGCCTTCAAAGCCCTTAGTAAGTTA-CAACACTTAATTTCTG");
+		Sequence orangutan = new Sequence("orangutan", "AGAAATATGTCTGACAAAAGAGTTACTTTGATAGAGTAAAAAATAGAGGTCTAAATCCCCTTATTTCTACTAGGACTATGGGAATTGAACCCACCCCTGAGAATCCAAAATTCTCCGTGCCACCCATCACACCCCATCCTAAGTAAGGTCAGCTAAATAAGCTATCGGGCCCATACCCCGAAAATGTTGGTTACACCCTTCCCGTACTAAGAAATTTAGGTTAAACACAGACCAAGAGCCTTCAAAGCCCTCAGTAAGTTAACAAAACTTAATTTCTG");
+		return new Alignment(Arrays.asList(human, chimp, gorilla, orangutan), "nucleotide");
+	}
+
+	static TreeParser getTree(Alignment data) {
+		TreeParser tree = new TreeParser();
+		tree.initByName("taxa", data, "newick", "(((human:0.024003,chimp:0.024003):0.010772,gorilla:0.034775):0.045864,orangutan:0.080639)", "IsLabelledNewick", true);
+		return tree;
+	}
+
+	static TreeLikelihood getLikelihood(Alignment data, TreeParser tree, RealParameter kappa, RealParameter shape) {
+		Frequencies freqs = new Frequencies();
+		freqs.initByName("data", data);
+		HKY hky = new HKY();
+		hky.initByName("kappa", kappa, "frequencies", freqs);
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 4, "shape", shape, "substModel", hky);
+		TreeLikelihood likelihood = new TreeLikelihood();
+		likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+		return likelihood;
+	}
+
+	@Test
+	public void testCopyHasSameLogP() {
+		Alignment data = getAlignment();
+		TreeParser tree = getTree(data);
+		RealParameter kappa = new RealParameter("2.5");
+		kappa.setID("kappa");
+		RealParameter shape = new RealParameter("0.3");
+		shape.setID("shape");
+		TreeLikelihood likelihood = getLikelihood(data, tree, kappa, shape);
+		State state = new State();
+		state.initByName("stateNode", Arrays.asList(tree, kappa, shape));
+		double logP = likelihood.calculateLogP();
+
+		int outputCount = data.getOutputs().size();
+		for (int i = 0; i < 3; i++) {
+			GraphCopier copier = new GraphCopier();
+			TreeLikelihood copy = copier.copy(likelihood);
+			assertNotSame(likelihood, copy);
+			assertEquals(logP, copy.calculateLogP(), 1e-10);
+
+			// alignment is shared, but does not collect copies as outputs
+			assertSame(data, copy.dataInput.get());
+			assertFalse(data.getOutputs().contains(copy));
+			assertEquals(outputCount, data.getOutputs().size());
+		}
+	}
+
+	@Test
+	public void testCopyOfChangedState() {
+		Alignment data = getAlignment();
+		TreeParser tree = getTree(data);
+		RealParameter kappa = new RealParameter("2.5");
+		RealParameter shape = new RealParameter("0.3");
+		// copies get the current values of state nodes, not those their inputs specify
+		kappa.setValue(7.0);
+		shape.setValue(1.5);
+		TreeLikelihood likelihood = getLikelihood(data, tree, kappa, shape);
+		State state = new State();
+		state.initByName("stateNode", Arrays.asList(tree, kappa, shape));
+		double logP = likelihood.calculateLogP();
+
+		GraphCopier copier = new GraphCopier();
+		TreeLikelihood copy = copier.copy(likelihood);
+		assertEquals(logP, copy.calculateLogP(), 1e-10);
+	}
+
+	@Test
+	public void testCopyOfResizedParameter() {
+		RealParameter rates = new RealParameter();
+		rates.initByName("value", "1.0", "dimension", 3);
+		rates.setDimension(5);
+		rates.setValue(4, 2.5);
+		State state = new State();
+		state.initByName("stateNode", Arrays.asList(rates));
+
+		GraphCopier copier = new GraphCopier();
+		RealParameter copy = copier.copy(rates);
+		assertNotSame(rates, copy);
+		assertEquals(5, copy.getDimension());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(rates.getArrayValue(i), copy.getArrayValue(i), 0.0);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import online.treeexpander.PlacementCache;
+
+public class PlacementCacheTest {
+
+	/** taxon numbers by name, t0...t(n-1) **/
+	private Map<String, Integer> getMap(int n) {
+		Map<String, Integer> map = new HashMap<>();
+		for (int i = 0; i < n; i++) {
+			map.put("t" + i, i);
+		}
+		return map;
+	}
+
+	/** most recent common ancestor of taxa with ids a and b **/
+	private Node getMRCA(Tree tree, String a, String b) {
+		Node node = TreeSurgeryTest.getNode(tree, a);
+		Node other = TreeSurgeryTest.getNode(tree, b);
+		while (!isAncestor(node, other)) {
+			node = node.getParent();
+		}
+		return node;
+	}
+
+	private boolean isAncestor(Node node, Node other) {
+		while (other != null && other != node) {
+			other = other.getParent();
+		}
+		return other == node;
+	}
+
+	@Test
+	public void testMostFrequentClade() {
+		Map<String, Integer> map = getMap(200);
+		String newick = TreeSurgeryTest.getRandomNewick(200, 3);
+		Tree tree = TreeSurgeryTest.getTree(newick);
+		Node root = tree.getRoot();
+		Node left = root.getLeft();
+		Node right = root.getRight();
+		Node leftClade = left.isLeaf() ? left : left.getRight();
+		Node rightClade = right.isLeaf() ? right : right.getLeft();
+
+		PlacementCache cache = new PlacementCache();
+		assertNull(cache.getClade("new", root, map));
+		cache.add("new", leftClade, map);
+		cache.add("new", leftClade, map);
+		cache.add("new", rightClade, map);
+		cache.add("other", root, map);
+
+		assertSame(leftClade, cache.getClade("new", root, map));
+		// clades outside the subtree are not considered
+		assertSame(rightClade, cache.getClade("new", right, map));
+
+		// same clades in a copy of the tree are found by their taxa, not by their nodes
+		Tree copy = TreeSurgeryTest.getTree(newick);
+		Node found = cache.getClade("new", copy.getRoot(), map);
+		assertSame(getMRCA(copy, leftClade.getAllLeafNodes().get(0).getID(),
+				leftClade.getAllLeafNodes().get(leftClade.getLeafNodeCount() - 1).getID()), found);
+		assertSame(copy.getRoot(), cache.getClade("other", copy.getRoot(), map));
+	}
+
+	@Test
+	public void testOtherTopology() {
+		Map<String, Integer> map = getMap(5);
+		Tree tree = TreeSurgeryTest.getTree("((t0:1.0,t1:1.0):1.0,(t2:0.5,(t3:0.25,t4:0.25):0.25):1.5)");
+		PlacementCache cache = new PlacementCache();
+		cache.add("new", getMRCA(tree, "t3", "t4"), map);
+		cache.add("new", getMRCA(tree, "t0", "t1"), map);
+		cache.add("new", getMRCA(tree, "t0", "t1"), map);
+
+		// neither clade is in this tree
+		Tree other = TreeSurgeryTest.getTree("((t0:1.0,t3:1.0):1.0,(t2:0.5,(t1:0.25,t4:0.25):0.25):1.5)");
+		assertNull(cache.getClade("new", other.getRoot(), map));
+		// (t0,t1) is not a clade of this tree, so the less frequent (t3,t4) is picked
+		Tree other2 = TreeSurgeryTest.getTree("((t0:1.0,t2:1.0):1.0,(t1:0.5,(t3:0.25,t4:0.25):0.25):1.5)");
+		assertSame(getMRCA(other2, "t3", "t4"), cache.getClade("new", other2.getRoot(), map));
+	}
+}
@@ -0,0 +1,264 @@
+package test.online;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.evolution.tree.TreeParser;
+import online.treeexpander.TreeSurgery;
+
+/** compares TreeSurgery with the recursive implementations it replaced **/
+public class TreeSurgeryTest {
+
+	static Tree getTree(String newick) {
+		TreeParser tree = new TreeParser();
+		tree.initByName("newick", newick, "IsLabelledNewick", true, "adjustTipHeights", false);
+		return tree;
+	}
+
+	/** random binary tree with taxa t0...t(n-1), large enough to make TreeSurgery grow its buffers **/
+	static String getRandomNewick(int n, long seed) {
+		List<String> taxa = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			taxa.add("t" + i);
+		}
+		Random random = new Random(seed);
+		Collections.shuffle(taxa, random);
+		String newick = getRandomNewick(taxa, random);
+		return newick.substring(0, newick.lastIndexOf(':'));
+	}
+
+	private static String getRandomNewick(List<String> taxa, Random random) {
+		if (taxa.size() == 1) {
+			return taxa.get(0) + ":1.0";
+		}
+		int split = 1 + random.nextInt(taxa.size() - 1);
+		return "(" + getRandomNewick(taxa.subList(0, split), random) + "," +
+				getRandomNewick(taxa.subList(split, taxa.size()), random) + "):1.0";
+	}
+
+	static Node getNode(Tree tree, String id) {
+		for (Node node : tree.getNodesAsArray()) {
+			if (id.equals(node.getID())) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/** recursive pruning as BaseStateExpander.removeExclusions did it **/
+	static Node removeExclusions(Node node, List<String> taxaToExclude) {
+		if (node.isLeaf()) {
+			if (Collections.binarySearch(taxaToExclude, node.getID()) < 0) {
+				return node;
+			} else {
+				return null;
+			}
+		} else {
+			Node left_ = node.getLeft();
+			Node right_ = node.getRight();
+			left_ = removeExclusions(left_, taxaToExclude);
+			right_ = removeExclusions(right_, taxaToExclude);
+			if (left_ == null && right_ == null) {
+				return null;
+			}
+			if (left_ == null) {
+				return right_;
+			}
+			if (right_ == null) {
+				return left_;
+			}
+			node.removeAllChildren(false);
+			node.addChild(left_);
+			node.addChild(right_);
+			return node;
+		}
+	}
+
+	/** recursive renumbering as BinarySearchExpander.renumberInternal did it, recording renumbered nodes in changes **/
+	static int renumberInternal(Node node, Node [] nodes, Map<String, Integer> map, int[] nr, List<String> changes) {
+		for (Node child : node.getChildren()) {
+			renumberInternal(child, nodes, map, nr, changes);
+		}
+		if (!node.isLeaf()) {
+			int i = node.getNr();
+			if (i != nr[0]) {
+				changes.add(i + "=>" + nr[0]);
+			}
+			node.setNr(nr[0]);
+			nr[0]++;
+		} else {
+			int i = node.getNr();
+			if (i != map.get(node.getID())) {
+				node.setNr(map.get(node.getID()));
+				changes.add(i + "=>" + map.get(node.getID()));
+			}
+		}
+		nodes[node.getNr()] = node;
+		return nr[0];
+	}
+
+	/** recursive setRoot as BinarySearchExpander.setRoot did it **/
+	static void setRoot(Tree tree, Node newRoot) {
+		if (tree.getRoot() == newRoot) {
+			return;
+		}
+		Node oldRoot = tree.getRoot();
+		List<Node> children = new ArrayList<>();
+		children.addAll(oldRoot.getChildren());
+
+		List<Node> children2 = new ArrayList<>();
+		children2.addAll(newRoot.getChildren());
+		Node parent = oldRoot.getParent();
+
+		oldRoot.removeAllChildren(false);
+		parent.removeChild(oldRoot);
+		newRoot.removeAllChildren(false);
+
+		for (Node child : children) {
+			newRoot.addChild(child);
+		}
+		if (parent != newRoot) {
+			parent.addChild(newRoot);
+		}
+		for (Node child : children2) {
+			if (child != oldRoot) {
+				oldRoot.addChild(child);
+			} else {
+				oldRoot.addChild(newRoot);
+			}
+		}
+		oldRoot.setParent(null);
+
+		double tmp = newRoot.getHeight();
+		newRoot.setHeight(oldRoot.getHeight());
+		oldRoot.setHeight(tmp);
+	}
+
+	private void assertSameNumbers(Node expected, Node actual) {
+		assertEquals(expected.getID(), actual.getID());
+		assertEquals(expected.getNr(), actual.getNr());
+		assertEquals(expected.getChildCount(), actual.getChildCount());
+		for (int i = 0; i < expected.getChildCount(); i++) {
+			assertSameNumbers(expected.getChild(i), actual.getChild(i));
+		}
+	}
+
+	private void assertPrunedAsBefore(String newick, List<String> taxaToExclude) {
+		Collections.sort(taxaToExclude);
+		Node expected = removeExclusions(getTree(newick).getRoot(), taxaToExclude);
+		Node actual = new TreeSurgery().prune(getTree(newick).getRoot(), taxaToExclude);
+		if (expected == null) {
+			assertNull(actual);
+		} else {
+			assertEquals(expected.toNewick(), actual.toNewick());
+		}
+	}
+
+	@Test
+	public void testPrune() {
+		String newick = "(((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5)";
+		assertPrunedAsBefore(newick, new ArrayList<>());
+		assertPrunedAsBefore(newick, new ArrayList<>(List.of("A")));
+		assertPrunedAsBefore(newick, new ArrayList<>(List.of("C", "B")));
+		assertPrunedAsBefore(newick, new ArrayList<>(List.of("D", "E")));
+		assertPrunedAsBefore(newick, new ArrayList<>(List.of("A", "B", "C", "D")));
+		assertPrunedAsBefore(newick, new ArrayList<>(List.of("A", "B", "C", "D", "E")));
+
+		newick = getRandomNewick(200, 1);
+		List<String> taxaToExclude = new ArrayList<>();
+		for (int i = 0; i < 200; i += 3) {
+			taxaToExclude.add("t" + i);
+		}
+		assertPrunedAsBefore(newick, taxaToExclude);
+	}
+
+	@Test
+	public void testRenumber() {
+		for (String newick : new String[] {"(((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5)", getRandomNewick(200, 2)}) {
+			Tree expectedTree = getTree(newick);
+			Tree actualTree = getTree(newick);
+			// leaves get numbers in reverse order of their current number
+			int leafCount = expectedTree.getLeafNodeCount();
+			Map<String, Integer> map = new HashMap<>();
+			for (int i = 0; i < leafCount; i++) {
+				map.put(expectedTree.getNode(i).getID(), leafCount - 1 - i);
+			}
+
+			Node [] expectedNodes = new Node[expectedTree.getNodeCount()];
+			List<String> expectedChanges = new ArrayList<>();
+			int expectedNr = renumberInternal(expectedTree.getRoot(), expectedNodes, map, new int[]{leafCount}, expectedChanges);
+
+			Node [] actualNodes = new Node[actualTree.getNodeCount()];
+			List<String> actualChanges = new ArrayList<>();
+			int actualNr = new TreeSurgery().renumber(actualTree.getRoot(), actualNodes, map, leafCount,
+					(oldNr, newNr) -> actualChanges.add(oldNr + "=>" + newNr));
+
+			assertEquals(expectedNr, actualNr);
+			assertEquals(expectedChanges, actualChanges);
+			assertSameNumbers(expectedTree.getRoot(), actualTree.getRoot());
+			for (int i = 0; i < expectedNodes.length; i++) {
+				assertEquals(expectedNodes[i].getNr(), actualNodes[i].getNr());
+				assertEquals(i, actualNodes[i].getNr());
+			}
+		}
+	}
+
+	/** new root above the root of the tree, as when the first new taxon is added **/
+	private Node addRootAbove(Tree tree) {
+		Node newRoot = new Node();
+		newRoot.setHeight(tree.getRoot().getHeight() + 1.0);
+		newRoot.addChild(tree.getRoot());
+		Node leaf = new Node("F");
+		leaf.setHeight(0.0);
+		newRoot.addChild(leaf);
+		return newRoot;
+	}
+
+	/** child of the root as new root, with the old root moved above leaf A, as positionOnBranch does **/
+	private Node moveRootToA(Tree tree, TreeSurgery surgery) {
+		Node root = tree.getRoot();
+		Node newRoot = root.getLeft();
+		root.removeChild(newRoot);
+		newRoot.setParent(null);
+		Node a = getNode(tree, "A");
+		surgery.graft(root, a);
+		root.setHeight(a.getHeight() + 0.5);
+		return newRoot;
+	}
+
+	@Test
+	public void testSetRoot() {
+		String newick = "(((A:1.0,B:1.0):1.0,C:2.0):1.0,(D:1.5,E:1.5):1.5)";
+		TreeSurgery surgery = new TreeSurgery();
+
+		Tree expectedTree = getTree(newick);
+		setRoot(expectedTree, addRootAbove(expectedTree));
+		Tree actualTree = getTree(newick);
+		Node oldRoot = actualTree.getRoot();
+		surgery.setRoot(actualTree, addRootAbove(actualTree));
+		assertSame(oldRoot, actualTree.getRoot());
+		assertNull(actualTree.getRoot().getParent());
+		assertEquals(expectedTree.getRoot().toNewick(), actualTree.getRoot().toNewick());
+
+		expectedTree = getTree(newick);
+		setRoot(expectedTree, moveRootToA(expectedTree, surgery));
+		actualTree = getTree(newick);
+		oldRoot = actualTree.getRoot();
+		surgery.setRoot(actualTree, moveRootToA(actualTree, surgery));
+		assertSame(oldRoot, actualTree.getRoot());
+		assertNull(actualTree.getRoot().getParent());
+		assertEquals(expectedTree.getRoot().toNewick(), actualTree.getRoot().toNewick());
+	}
+}